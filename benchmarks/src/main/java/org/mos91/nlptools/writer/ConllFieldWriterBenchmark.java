@@ -0,0 +1,96 @@
+package org.mos91.nlptools.writer;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ConllFieldWriter#print} for a full CoNLL-2009 row; one operation is one token line.
+ * Both benchmarks encode to UTF-8; {@code printEncoded} puts the tags through the tag dictionary and
+ * writes bytes, as the writer does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConllFieldWriterBenchmark {
+
+  private ConllFieldWriter fieldWriter;
+
+  private PrintWriter out;
+
+  private OutputStream bytes;
+
+  private int id;
+
+  @Setup
+  public void setUp() {
+    int[] fieldSlots = ConllFieldWriter.newFieldSlots();
+    for (int i = 0; i < fieldSlots.length; i++) {
+      fieldSlots[i] = i;
+    }
+    fieldWriter = new ConllFieldWriter(ConllUniWriter.DEFAULT_CONLL2009_ROW_FORMAT, fieldSlots);
+    bytes = new NullOutputStream();
+    out = new PrintWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8));
+  }
+
+  @Benchmark
+  public void print() {
+    id = id % 40 + 1;
+    fieldWriter.putId(id)
+      .putForm("Corporations")
+      .putLemma("corporation")
+      .putPlemma("corporation")
+      .putPos("NNS")
+      .putPPos("NNS")
+      .putFeat("_")
+      .putPFeat("_")
+      .putHead("12")
+      .putPHead("12")
+      .putDeprel("nsubj")
+      .putPDeprel("nsubj")
+      .putFillpred("_")
+      .putPred("_")
+      .putApreds("A0\t_");
+    fieldWriter.print(out);
+  }
+
+  @Benchmark
+  public void printEncoded() throws IOException {
+    id = id % 40 + 1;
+    fieldWriter.putId(id)
+      .putForm("Corporations")
+      .putLemma("corporation")
+      .putPlemma("corporation")
+      .putTag(ConllFieldWriter.POS_FIELD, "NNS")
+      .putTag(ConllFieldWriter.PPOS_FIELD, "NNS")
+      .putTag(ConllFieldWriter.FEAT_FIELD, "_")
+      .putTag(ConllFieldWriter.PFEAT_FIELD, "_")
+      .putHead("12")
+      .putPHead("12")
+      .putTag(ConllFieldWriter.DEPREL_FIELD, "nsubj")
+      .putTag(ConllFieldWriter.PDEPREL_FIELD, "nsubj")
+      .putTag(ConllFieldWriter.FILLPRED_FIELD, "_")
+      .putTag(ConllFieldWriter.PRED_FIELD, "_")
+      .addTag(ConllFieldWriter.APREDS_FIELD, "A0")
+      .addTag(ConllFieldWriter.APREDS_FIELD, "_");
+    fieldWriter.print(bytes);
+  }
+}
@@ -0,0 +1,99 @@
+package org.mos91.nlptools.writer;
+
+import static org.apache.uima.fit.factory.UimaContextFactory.createUimaContext;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.uima.jcas.JCas;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ConllUniWriter#convert}, including the encoding to bytes, on a synthetic document
+ * without the file system. The {@code tokens} counter gives tokens/sec; run with {@code -prof gc} for
+ * the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ConllUniWriterBenchmark {
+
+  public static final String CUSTOM_ROW_FORMAT = "${form}, ${lemma}, ${pos}, ${head}, ${deprel}";
+
+  @Param({ "200" })
+  public int sentences;
+
+  @Param({ "25" })
+  public int tokensPerSentence;
+
+  @Param({ "true" })
+  public boolean dependencies;
+
+  @Param({ "2" })
+  public int predicatesPerSentence;
+
+  @Param({ "2" })
+  public int argumentsPerPredicate;
+
+  @Param({ "conll2009", "custom" })
+  public String format;
+
+  @Param({ "false", "true" })
+  public boolean header;
+
+  private JCas jCas;
+
+  private ConllUniWriter writer;
+
+  private OutputStream out;
+
+  @Setup
+  public void setUp() throws Exception {
+    jCas = SyntheticDocuments.create(sentences, tokensPerSentence, dependencies, predicatesPerSentence,
+      argumentsPerPredicate);
+
+    writer = new ConllUniWriter();
+    writer.initialize(createUimaContext(
+      ConllUniWriter.PARAM_TARGET_LOCATION, System.getProperty("java.io.tmpdir"),
+      ConllUniWriter.PARAM_INCLUDE_HEADER, header,
+      ConllUniWriter.PARAM_ROW_FORMAT,
+      "custom".equals(format) ? CUSTOM_ROW_FORMAT : ConllUniWriter.DEFAULT_CONLL2009_ROW_FORMAT));
+
+    out = new NullOutputStream();
+  }
+
+  @Benchmark
+  public void convert(TokenCounter counter) throws IOException {
+    writer.convert(jCas, out);
+    counter.tokens += sentences * tokensPerSentence;
+  }
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class TokenCounter {
+
+    public long tokens;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      tokens = 0;
+    }
+  }
+}
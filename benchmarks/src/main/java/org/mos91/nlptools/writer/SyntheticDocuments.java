@@ -0,0 +1,116 @@
+package org.mos91.nlptools.writer;
+
+import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.morph.MorphologicalFeatures;
+import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS;
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Lemma;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import de.tudarmstadt.ukp.dkpro.core.api.semantics.type.SemanticArgument;
+import de.tudarmstadt.ukp.dkpro.core.api.semantics.type.SemanticPredicate;
+import de.tudarmstadt.ukp.dkpro.core.api.syntax.type.dependency.Dependency;
+import org.apache.uima.UIMAException;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.jcas.cas.FSArray;
+
+import java.util.Random;
+
+/**
+ * Builds fully annotated synthetic documents for the writer benchmarks: every token has a lemma, a
+ * POS tag and morphological features, and optionally a dependency and semantic roles.
+ */
+final class SyntheticDocuments {
+
+  private static final String[] POS_TAGS = { "NN", "NNS", "VB", "VBD", "DT", "JJ", "IN", "PRP", "RB", "CC" };
+
+  private static final String[] DEPENDENCY_TYPES = { "nsubj", "dobj", "det", "amod", "prep", "pobj", "advmod", "cc" };
+
+  private static final String[] ROLES = { "A0", "A1", "A2", "AM-TMP", "AM-LOC" };
+
+  private SyntheticDocuments() {
+  }
+
+  static JCas create(int sentences, int tokensPerSentence, boolean dependencies, int predicatesPerSentence,
+                     int argumentsPerPredicate) throws UIMAException {
+    JCas jCas = JCasFactory.createJCas();
+    Random random = new Random(42);
+
+    StringBuilder text = new StringBuilder();
+    int[][] tokenSpans = new int[sentences * tokensPerSentence][];
+    for (int s = 0, t = 0; s < sentences; s++) {
+      for (int i = 0; i < tokensPerSentence; i++, t++) {
+        int begin = text.length();
+        text.append("token").append(random.nextInt(5000));
+        tokenSpans[t] = new int[] { begin, text.length() };
+        text.append(' ');
+      }
+      text.append('\n');
+    }
+    jCas.setDocumentText(text.toString());
+    jCas.setDocumentLanguage("en");
+
+    DocumentMetaData metaData = DocumentMetaData.create(jCas);
+    metaData.setDocumentId("synthetic");
+
+    Token[] tokens = new Token[tokensPerSentence];
+    for (int s = 0; s < sentences; s++) {
+      for (int i = 0; i < tokensPerSentence; i++) {
+        int[] span = tokenSpans[s * tokensPerSentence + i];
+        Token token = new Token(jCas, span[0], span[1]);
+
+        Lemma lemma = new Lemma(jCas, span[0], span[1]);
+        lemma.setValue(token.getCoveredText().toLowerCase());
+        lemma.addToIndexes();
+        token.setLemma(lemma);
+
+        POS pos = new POS(jCas, span[0], span[1]);
+        pos.setPosValue(POS_TAGS[random.nextInt(POS_TAGS.length)]);
+        pos.addToIndexes();
+        token.setPos(pos);
+
+        MorphologicalFeatures feats = new MorphologicalFeatures(jCas, span[0], span[1]);
+        feats.setValue("Number=Sing");
+        feats.addToIndexes();
+
+        token.addToIndexes();
+        tokens[i] = token;
+      }
+      new Sentence(jCas, tokens[0].getBegin(), tokens[tokensPerSentence - 1].getEnd()).addToIndexes();
+
+      if (dependencies) {
+        for (int i = 0; i < tokensPerSentence; i++) {
+          Dependency dependency = new Dependency(jCas, tokens[i].getBegin(), tokens[i].getEnd());
+          dependency.setDependent(tokens[i]);
+          if (i == 0) {
+            dependency.setGovernor(tokens[i]);
+            dependency.setDependencyType("ROOT");
+          } else {
+            dependency.setGovernor(tokens[random.nextInt(tokensPerSentence)]);
+            dependency.setDependencyType(DEPENDENCY_TYPES[random.nextInt(DEPENDENCY_TYPES.length)]);
+          }
+          dependency.addToIndexes();
+        }
+      }
+
+      for (int p = 0; p < predicatesPerSentence; p++) {
+        Token predToken = tokens[random.nextInt(tokensPerSentence)];
+        SemanticPredicate pred = new SemanticPredicate(jCas, predToken.getBegin(), predToken.getEnd());
+        pred.setCategory(predToken.getCoveredText() + ".01");
+
+        FSArray args = new FSArray(jCas, argumentsPerPredicate);
+        for (int a = 0; a < argumentsPerPredicate; a++) {
+          Token argToken = tokens[random.nextInt(tokensPerSentence)];
+          SemanticArgument arg = new SemanticArgument(jCas, argToken.getBegin(), argToken.getEnd());
+          arg.setRole(ROLES[a % ROLES.length]);
+          arg.addToIndexes();
+          args.set(a, arg);
+        }
+        pred.setArguments(args);
+        pred.addToIndexes();
+      }
+    }
+
+    return jCas;
+  }
+}
@@ -0,0 +1,199 @@
+package org.mos91.nlptools;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.util.Level;
+import org.apache.uima.util.Logger;
+import org.mos91.nlptools.metrics.StageProbe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Resident HTTP front end of the {@link Pipeline} engine chain, so that models are loaded once rather
+ * than per request. {@code POST /annotate} with UTF-8 text as body answers with its CoNLL rendering,
+ * as {@link org.mos91.nlptools.writer.ConllUniWriter} writes it for the pipeline. Texts that arrive
+ * together are annotated in batches, see {@link BatchingAnnotator}. Handlers do not wait for the
+ * annotation: the response is sent when it completes, so requests beyond the queue capacity of the
+ * annotator are answered with 503 rather than piling up.
+ *
+ * The server binds to the loopback interface only. It is configured by system properties:
+ * {@value #PORT_PROPERTY} (8080), {@link Pipeline#THREADS_PROPERTY} for the number of engine chains (1),
+ * {@value #BATCH_SIZE_PROPERTY} (16), {@value #MAX_WAIT_PROPERTY} (5), {@value #QUEUE_PROPERTY} (256) and
+ * {@value #MAX_REQUEST_PROPERTY} (1 MiB); {@link Pipeline#WARM_UP_PROPERTY} and
+ * {@link Pipeline#METRICS_PROPERTY} apply as for the pipeline, a document of the metrics being a batch.
+ */
+public final class AnnotationServer {
+
+  public static final String PORT_PROPERTY = "nlptools.server.port";
+
+  /**
+   * Maximum number of texts annotated in one CAS.
+   */
+  public static final String BATCH_SIZE_PROPERTY = "nlptools.server.batchSize";
+
+  /**
+   * Milliseconds a worker waits for more texts after the first of a batch.
+   */
+  public static final String MAX_WAIT_PROPERTY = "nlptools.server.maxWaitMillis";
+
+  /**
+   * Texts that may wait for a worker; beyond that, requests are answered with 503.
+   */
+  public static final String QUEUE_PROPERTY = "nlptools.server.queueCapacity";
+
+  /**
+   * Largest request body accepted, in bytes.
+   */
+  public static final String MAX_REQUEST_PROPERTY = "nlptools.server.maxRequestBytes";
+
+  private static final Logger LOG = UIMAFramework.getLogger(AnnotationServer.class);
+
+  private final BatchingAnnotator annotator;
+
+  private final HttpServer server;
+
+  private final ExecutorService handlers;
+
+  private final int maxRequestBytes;
+
+  AnnotationServer(BatchingAnnotator annotator, int port, int handlerThreads, int maxRequestBytes)
+    throws IOException {
+    this.annotator = annotator;
+    this.maxRequestBytes = maxRequestBytes;
+    server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+    server.createContext("/annotate", this::handle);
+    // Handlers read requests and write responses; reading a slow request body still occupies one
+    handlers = Executors.newFixedThreadPool(handlerThreads);
+    server.setExecutor(handlers);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threadCount = Integer.getInteger(Pipeline.THREADS_PROPERTY, 1);
+    int batchSize = Integer.getInteger(BATCH_SIZE_PROPERTY, 16);
+    int queueCapacity = Integer.getInteger(QUEUE_PROPERTY, 256);
+
+    AnalysisEngineDescription[] annotators = Pipeline.createAnnotators();
+    if (Pipeline.isWarmUpEnabled()) {
+      Pipeline.shareModels();
+      SharedModels.warmUp("en", Pipeline.WARM_UP_TEXT, annotators);
+    }
+    if (Boolean.getBoolean(Pipeline.METRICS_PROPERTY)) {
+      // The writer runs outside of the chain here, so it is not a stage of its own
+      annotators = StageProbe.instrument(annotators);
+      Pipeline.startMetrics();
+    }
+
+    BatchingAnnotator annotator = new BatchingAnnotator(annotators, Pipeline.writerParameters(), "en",
+      threadCount, batchSize, Long.getLong(MAX_WAIT_PROPERTY, 5), queueCapacity);
+    AnnotationServer server = new AnnotationServer(annotator, Integer.getInteger(PORT_PROPERTY, 8080),
+      threadCount * batchSize, Integer.getInteger(MAX_REQUEST_PROPERTY, 1 << 20));
+    Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+    server.start();
+  }
+
+  public void start() {
+    server.start();
+    LOG.log(Level.INFO, "Listening on " + server.getAddress());
+  }
+
+  /**
+   * Stops accepting requests, waits a second for running ones and closes the annotator.
+   */
+  public void stop() {
+    server.stop(1);
+    annotator.close();
+    handlers.shutdown();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    boolean pending = false;
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        respond(exchange, 405, "Use POST with the text as body\n");
+        return;
+      }
+
+      byte[] body = readBody(exchange.getRequestBody());
+      if (body == null) {
+        respond(exchange, 413, "Text exceeds " + maxRequestBytes + " bytes\n");
+        return;
+      }
+
+      CompletableFuture<byte[]> conll;
+      try {
+        conll = annotator.submit(new String(body, StandardCharsets.UTF_8));
+      } catch (RejectedExecutionException e) {
+        respond(exchange, 503, e.getMessage() + "\n");
+        return;
+      }
+      conll.whenCompleteAsync((result, failure) -> complete(exchange, result, failure), handlers);
+      pending = true;
+    } finally {
+      if (!pending) {
+        exchange.close();
+      }
+    }
+  }
+
+  private static void complete(HttpExchange exchange, byte[] conll, Throwable failure) {
+    try {
+      if (failure != null) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+          ? failure.getCause() : failure;
+        if (cause instanceof CancellationException) {
+          respond(exchange, 503, "Annotator is closed\n");
+        } else {
+          respond(exchange, 500, "Unable to annotate text: " + cause + "\n");
+        }
+        return;
+      }
+
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+      exchange.sendResponseHeaders(200, conll.length == 0 ? -1 : conll.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(conll);
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to send response: " + e);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * @return the body, or null if it is larger than the limit.
+   */
+  private byte[] readBody(InputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int read; (read = in.read(buffer)) >= 0; ) {
+      if (body.size() + read > maxRequestBytes) {
+        return null;
+      }
+      body.write(buffer, 0, read);
+    }
+    return body.toByteArray();
+  }
+
+  private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
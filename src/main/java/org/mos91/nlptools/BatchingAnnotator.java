@@ -0,0 +1,250 @@
+package org.mos91.nlptools;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngine;
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
+import static org.apache.uima.fit.factory.UimaContextFactory.createUimaContext;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.fit.util.LifeCycleUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.Level;
+import org.apache.uima.util.Logger;
+import org.mos91.nlptools.writer.ConllUniWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Annotates texts submitted one by one on a fixed pool of engine chains, and renders every text in
+ * CoNLL as {@link ConllUniWriter} would write it.
+ *
+ * Every worker thread owns an instance of the annotators, a writer and one CAS. A worker takes the
+ * oldest waiting text, then collects more for at most {@code maxWaitMillis} or until it has
+ * {@code batchSize} of them, and annotates the whole batch in one CAS. The texts are separated by a
+ * paragraph break, which ends a sentence for the Stanford segmenter of the pipeline, so that no
+ * sentence spans two texts, and the writer gives every text the sentences that begin within it. If a
+ * batch fails, its texts are retried one at a time, so that a bad text fails alone.
+ */
+final class BatchingAnnotator implements Closeable {
+
+  private static final Logger LOG = UIMAFramework.getLogger(BatchingAnnotator.class);
+
+  private static final String SEPARATOR = "\n\n";
+
+  /**
+   * How often idle workers check whether the annotator was closed.
+   */
+  private static final long IDLE_POLL_MILLIS = 200;
+
+  private final String language;
+
+  private final int batchSize;
+
+  private final long maxWaitNanos;
+
+  private final BlockingQueue<Request> queue;
+
+  private final List<Thread> workers = new ArrayList<>();
+
+  private volatile boolean closed;
+
+  /**
+   * @param writerParameters writer configuration; the target location is not used.
+   * @param queueCapacity texts that may wait for a worker before {@link #submit} rejects more.
+   */
+  BatchingAnnotator(AnalysisEngineDescription[] annotators, Object[] writerParameters, String language,
+                    int workerCount, int batchSize, long maxWaitMillis, int queueCapacity)
+    throws ResourceInitializationException {
+    if (workerCount < 1 || batchSize < 1 || maxWaitMillis < 0 || queueCapacity < 1) {
+      throw new IllegalArgumentException("Invalid pool configuration: " + workerCount + " workers, batches of "
+        + batchSize + ", " + maxWaitMillis + " ms wait, " + queueCapacity + " queued");
+    }
+    this.language = language;
+    this.batchSize = batchSize;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+    AnalysisEngineDescription chain = createEngineDescription(annotators);
+    List<Worker> pool = new ArrayList<>(workerCount);
+    try {
+      for (int i = 0; i < workerCount; i++) {
+        pool.add(new Worker(chain, writerParameters));
+      }
+    } catch (ResourceInitializationException | RuntimeException e) {
+      pool.forEach(Worker::destroy);
+      throw e;
+    }
+
+    for (Worker worker : pool) {
+      Thread thread = new Thread(worker, getClass().getSimpleName() + "-" + workers.size());
+      thread.setDaemon(true);
+      workers.add(thread);
+      thread.start();
+    }
+  }
+
+  /**
+   * @return CoNLL rendering of the text, in the writer encoding.
+   * @throws RejectedExecutionException if too many texts are waiting, or the annotator is closed.
+   */
+  CompletableFuture<byte[]> submit(String text) {
+    if (closed) {
+      throw new RejectedExecutionException("Annotator is closed");
+    }
+    Request request = new Request(text);
+    if (!queue.offer(request)) {
+      throw new RejectedExecutionException("Too many pending texts");
+    }
+    if (closed && queue.remove(request)) {
+      request.result.cancel(false);
+    }
+    return request.result;
+  }
+
+  /**
+   * Stops the workers; texts that still wait are cancelled, the current batches are finished.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    for (Thread worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    for (Request request; (request = queue.poll()) != null; ) {
+      request.result.cancel(false);
+    }
+  }
+
+  private static final class Request {
+
+    private final String text;
+
+    private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+    private Request(String text) {
+      this.text = text;
+    }
+  }
+
+  private final class Worker implements Runnable {
+
+    private final AnalysisEngine engine;
+
+    private final ConllUniWriter writer;
+
+    private final JCas jCas;
+
+    private final List<Request> batch = new ArrayList<>();
+
+    private final StringBuilder text = new StringBuilder();
+
+    private Worker(AnalysisEngineDescription chain, Object[] writerParameters)
+      throws ResourceInitializationException {
+      engine = createEngine(chain);
+      try {
+        writer = new ConllUniWriter();
+        writer.initialize(createUimaContext(writerParameters));
+        jCas = engine.newJCas();
+      } catch (ResourceInitializationException | RuntimeException e) {
+        LifeCycleUtil.destroy(engine);
+        throw e;
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!closed) {
+          if (collectBatch()) {
+            annotate(batch);
+            batch.clear();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        for (Request request : batch) {
+          request.result.cancel(false);
+        }
+        destroy();
+      }
+    }
+
+    private void destroy() {
+      writer.destroy();
+      LifeCycleUtil.destroy(engine);
+    }
+
+    /**
+     * @return false if no text arrived for a while.
+     */
+    private boolean collectBatch() throws InterruptedException {
+      Request first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+      if (first == null) {
+        return false;
+      }
+      batch.add(first);
+      long deadline = System.nanoTime() + maxWaitNanos;
+      while (batch.size() < batchSize) {
+        Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (next == null) {
+          break;
+        }
+        batch.add(next);
+      }
+      return true;
+    }
+
+    private void annotate(List<Request> requests) {
+      int[] begins = new int[requests.size()];
+      ByteArrayOutputStream[] parts = new ByteArrayOutputStream[requests.size()];
+      text.setLength(0);
+      for (int i = 0; i < requests.size(); i++) {
+        begins[i] = text.length();
+        parts[i] = new ByteArrayOutputStream();
+        text.append(requests.get(i).text).append(SEPARATOR);
+      }
+
+      Exception failure = null;
+      try {
+        jCas.setDocumentLanguage(language);
+        jCas.setDocumentText(text.toString());
+        engine.process(jCas);
+        writer.render(jCas, begins, parts);
+      } catch (Exception e) {
+        failure = e;
+      } finally {
+        jCas.reset();
+      }
+
+      if (failure == null) {
+        for (int i = 0; i < requests.size(); i++) {
+          requests.get(i).result.complete(parts[i].toByteArray());
+        }
+      } else if (requests.size() > 1) {
+        for (Request request : requests) {
+          annotate(Collections.singletonList(request));
+        }
+      } else {
+        LOG.log(Level.WARNING, "Unable to annotate text", failure);
+        requests.get(0).result.completeExceptionally(failure);
+      }
+    }
+  }
+}
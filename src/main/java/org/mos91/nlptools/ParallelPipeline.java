@@ -0,0 +1,168 @@
+package org.mos91.nlptools;
+
+import static java.util.Arrays.asList;
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngine;
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
+import static org.apache.uima.fit.factory.CollectionReaderFactory.createReader;
+
+import org.apache.uima.UIMAException;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.collection.CollectionReader;
+import org.apache.uima.collection.CollectionReaderDescription;
+import org.apache.uima.fit.util.LifeCycleUtil;
+import org.apache.uima.resource.metadata.MetaDataObject;
+import org.apache.uima.util.CasCreationUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Multi-threaded counterpart of {@link org.apache.uima.fit.pipeline.SimplePipeline#runPipeline}.
+ *
+ * Every worker thread owns its own instance of the engine chain and exactly one CAS, so no more than
+ * {@code threadCount} documents are in flight at any time. Documents are pulled from the shared
+ * collection reader under its monitor. Engines that write to a single target (e.g. a singular target
+ * or a zip archive) must not be used here, since every worker has its own writer instance.
+ */
+public final class ParallelPipeline {
+
+  private ParallelPipeline() {
+  }
+
+  public static void runPipeline(int threadCount, CollectionReaderDescription readerDesc,
+                                 AnalysisEngineDescription... descs) throws UIMAException, IOException {
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("threadCount must be positive, got " + threadCount);
+    }
+
+    AnalysisEngineDescription aaeDesc = createEngineDescription(descs);
+    List<AnalysisEngine> engines = new ArrayList<>(threadCount);
+    try {
+      for (int i = 0; i < threadCount; i++) {
+        engines.add(createEngine(aaeDesc));
+      }
+      runPipeline(readerDesc, engines);
+    } finally {
+      LifeCycleUtil.destroy(engines.toArray(new AnalysisEngine[engines.size()]));
+    }
+  }
+
+  /**
+   * Runs the collection through engines that the caller created and destroys, one worker thread per
+   * engine, so that engines can be reused for several collections.
+   */
+  static void runPipeline(CollectionReaderDescription readerDesc, List<AnalysisEngine> engines)
+    throws UIMAException, IOException {
+    CollectionReader reader = createReader(readerDesc);
+    ExecutorService executor = Executors.newFixedThreadPool(engines.size());
+    try {
+      List<MetaDataObject> metaData = asList(reader.getMetaData(), engines.get(0).getMetaData());
+      CAS firstCas = CasCreationUtils.createCas(metaData);
+      reader.typeSystemInit(firstCas.getTypeSystem());
+
+      AtomicBoolean failed = new AtomicBoolean();
+      List<Future<Void>> futures = new ArrayList<>(engines.size());
+      for (AnalysisEngine engine : engines) {
+        CAS cas = futures.isEmpty() ? firstCas
+          : CasCreationUtils.createCas(metaData, firstCas.getTypeSystem(), null);
+        futures.add(executor.submit(new Worker(reader, engine, cas, failed)));
+      }
+      executor.shutdown();
+
+      Throwable failure = null;
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          failed.set(true);
+          throw new AnalysisEngineProcessException(e);
+        }
+      }
+      rethrow(failure);
+
+      for (AnalysisEngine engine : engines) {
+        engine.collectionProcessComplete();
+      }
+    } finally {
+      executor.shutdownNow();
+      LifeCycleUtil.destroy(reader);
+    }
+  }
+
+  static void rethrow(Throwable failure) throws UIMAException, IOException {
+    if (failure == null) {
+      return;
+    }
+    if (failure instanceof UIMAException) {
+      throw (UIMAException) failure;
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    }
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    }
+    if (failure instanceof Error) {
+      throw (Error) failure;
+    }
+    throw new AnalysisEngineProcessException(failure);
+  }
+
+  private static final class Worker implements Callable<Void> {
+
+    private final CollectionReader reader;
+
+    private final AnalysisEngine engine;
+
+    private final CAS cas;
+
+    private final AtomicBoolean failed;
+
+    private Worker(CollectionReader reader, AnalysisEngine engine, CAS cas, AtomicBoolean failed) {
+      this.reader = reader;
+      this.engine = engine;
+      this.cas = cas;
+      this.failed = failed;
+    }
+
+    @Override
+    public Void call() throws Exception {
+      try {
+        while (!failed.get()) {
+          synchronized (reader) {
+            if (!reader.hasNext()) {
+              break;
+            }
+            reader.getNext(cas);
+          }
+
+          try {
+            engine.process(cas);
+          } finally {
+            cas.reset();
+          }
+        }
+      } catch (Exception | Error e) {
+        failed.set(true);
+        throw e;
+      }
+
+      return null;
+    }
+  }
+}
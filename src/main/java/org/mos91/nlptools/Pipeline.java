@@ -1,39 +1,839 @@
 package org.mos91.nlptools;
 
+import static java.util.Arrays.asList;
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngine;
 import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
 import static org.apache.uima.fit.factory.CollectionReaderFactory.createReaderDescription;
 import static org.apache.uima.fit.pipeline.SimplePipeline.runPipeline;
 
-import de.tudarmstadt.ukp.dkpro.core.io.text.TextReader;
+import de.tudarmstadt.ukp.dkpro.core.api.io.ResourceCollectionReaderBase;
 import de.tudarmstadt.ukp.dkpro.core.languagetool.LanguageToolLemmatizer;
+import de.tudarmstadt.ukp.dkpro.core.maltparser.MaltParser;
 import de.tudarmstadt.ukp.dkpro.core.opennlp.OpenNlpPosTagger;
 import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordParser;
 import de.tudarmstadt.ukp.dkpro.core.stanfordnlp.StanfordSegmenter;
+import org.apache.uima.UIMAException;
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.analysis_engine.AnalysisEngine;
 import org.apache.uima.analysis_engine.AnalysisEngineDescription;
 import org.apache.uima.collection.CollectionReaderDescription;
+import org.apache.uima.fit.util.LifeCycleUtil;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.Level;
+import org.apache.uima.util.Logger;
+import org.apache.uima.util.XMLizable;
+import org.mos91.nlptools.cache.SentenceCache;
+import org.mos91.nlptools.metrics.PipelineMetrics;
+import org.mos91.nlptools.metrics.StageProbe;
+import org.mos91.nlptools.queue.WorkQueue;
+import org.mos91.nlptools.reader.CasCheckpointReader;
+import org.mos91.nlptools.reader.ParallelTextReader;
+import org.mos91.nlptools.reader.WindowedTextReader;
+import org.mos91.nlptools.schedule.ScheduledParser;
+import org.mos91.nlptools.writer.CasCheckpointWriter;
+import org.mos91.nlptools.writer.ConllFieldWriter;
 import org.mos91.nlptools.writer.ConllUniWriter;
+import org.mos91.nlptools.writer.ResultCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class Pipeline {
 
-  public static void main(String[] args) throws Exception {
-    CollectionReaderDescription reader = createReaderDescription(
-      TextReader.class,
-      TextReader.PARAM_SOURCE_LOCATION, "src/test/resources",
-      TextReader.PARAM_PATTERNS, "*.txt",
-      TextReader.PARAM_LANGUAGE, "en");
-
-    AnalysisEngineDescription segmenter = createEngineDescription(StanfordSegmenter.class);
-    AnalysisEngineDescription parser = createEngineDescription(StanfordParser.class);
-    AnalysisEngineDescription writer = createEngineDescription(ConllUniWriter.class,
+  /**
+   * Number of worker threads, each running its own copy of the engine chain. Defaults to 1, which
+   * runs the serial {@code SimplePipeline}.
+   */
+  public static final String THREADS_PROPERTY = "nlptools.threads";
+
+  /**
+   * Maximum characters per window for streaming very large documents. If set, every file is read as a
+   * sequence of windows that are annotated one at a time and appended to the same output file; this
+   * runs serially, regardless of {@link #THREADS_PROPERTY}.
+   */
+  public static final String WINDOW_CHARS_PROPERTY = "nlptools.windowChars";
+
+  /**
+   * Whether to load all models before the first document, sharing the parser model among workers.
+   * Defaults to true.
+   */
+  public static final String WARM_UP_PROPERTY = "nlptools.warmUp";
+
+  /**
+   * Whether to time every stage of the chain into {@link PipelineMetrics}, which are then registered
+   * over JMX. Defaults to false.
+   */
+  public static final String METRICS_PROPERTY = "nlptools.metrics";
+
+  /**
+   * Seconds between metrics summaries in the log, 0 (the default) for none.
+   */
+  public static final String METRICS_PERIOD_PROPERTY = "nlptools.metrics.periodSeconds";
+
+  /**
+   * File that receives the metrics as JSON at the end of the run. Without it, they are logged.
+   */
+  public static final String METRICS_JSON_PROPERTY = "nlptools.metrics.json";
+
+  /**
+   * Directory of the {@link ResultCache}. If set, the run is incremental: documents whose text and
+   * pipeline configuration are unchanged since a cached run get their previous output back without
+   * being annotated, and only the others go through the engines.
+   */
+  public static final String RESULT_CACHE_PROPERTY = "nlptools.resultCache";
+
+  /**
+   * Capacity in sentences of the cache of tagger, lemmatizer and parser output, which saves annotating
+   * repeated sentences again. Defaults to 0, which disables it. A cached sentence with its parse takes
+   * some 20 to 25 KB of heap, so 100000 entries need about 2 GB; the cache lives as long as the JVM,
+   * e.g. for the whole lifetime of the {@link AnnotationServer}.
+   */
+  public static final String SENTENCE_CACHE_PROPERTY = "nlptools.sentenceCacheEntries";
+
+  /**
+   * Threads of the {@link ScheduledParser} pool, which parses the sentences of a document longest
+   * first; 0, the default, parses them one after the other.
+   */
+  public static final String PARSER_THREADS_PROPERTY = "nlptools.parserThreads";
+
+  /**
+   * Longest sentence in tokens for the parser when {@link #PARSER_THREADS_PROPERTY} is set; longer
+   * sentences go to the cheaper parser that the profile names. 0, the default, is no limit.
+   */
+  public static final String PARSER_MAX_TOKENS_PROPERTY = "nlptools.parserMaxTokens";
+
+  private static final String PCFG_PARSER_VARIANT = "pcfg";
+
+  /**
+   * Threads with which the writer renders the sentences of a long document; 1, the default, renders
+   * them one after the other. Does not apply to windowed reading, whose windows are short anyway.
+   */
+  public static final String RENDER_THREADS_PROPERTY = "nlptools.renderThreads";
+
+  /**
+   * Directory of a {@link WorkQueue} on a file system that all nodes share. If set, the run is
+   * distributed: the coordinator enqueues the source documents in chunks, and workers on any number of
+   * nodes lease chunks, annotate and write them, and mark them done until the queue is finished.
+   */
+  public static final String WORK_QUEUE_PROPERTY = "nlptools.workQueue";
+
+  /**
+   * {@value #WORKER_ROLE}, the default, or {@value #COORDINATOR_ROLE}, which enqueues the documents
+   * and waits for the workers, putting back the chunks of crashed ones.
+   */
+  public static final String WORK_QUEUE_ROLE_PROPERTY = "nlptools.workQueue.role";
+
+  public static final String WORKER_ROLE = "worker";
+
+  public static final String COORDINATOR_ROLE = "coordinator";
+
+  /**
+   * Documents per chunk of the work queue. Defaults to 16.
+   */
+  public static final String WORK_QUEUE_CHUNK_PROPERTY = "nlptools.workQueue.chunkDocuments";
+
+  /**
+   * Seconds after which the chunk of a worker that stopped renewing its lease is processed again.
+   * Defaults to 600.
+   */
+  public static final String WORK_QUEUE_LEASE_PROPERTY = "nlptools.workQueue.leaseSeconds";
+
+  private static final String SOURCE_LOCATION = "src/test/resources";
+
+  private static final String SOURCE_PATTERN = "*.txt";
+
+  /**
+   * File that lists the source documents to process, one per line and relative to the source location,
+   * instead of all that match the source pattern. Either separator is accepted.
+   */
+  public static final String MANIFEST_PROPERTY = "nlptools.manifest";
+
+  private static final String TARGET_LOCATION = ".";
+
+  private static final String FILENAME_SUFFIX = ".conll";
+
+  /**
+   * Directory of CAS checkpoints. If set, every document is checkpointed after the stage named by
+   * {@link #CHECKPOINT_AFTER_PROPERTY}, and with {@link #RESUME_PROPERTY} the run starts from the
+   * checkpoints instead of the source documents.
+   */
+  public static final String CHECKPOINT_PROPERTY = "nlptools.checkpoint";
+
+  /**
+   * One of {@link #STAGES}. Defaults to {@value #PARSER_STAGE}, so that resuming runs only the
+   * lemmatizer and the writer.
+   */
+  public static final String CHECKPOINT_AFTER_PROPERTY = "nlptools.checkpoint.after";
+
+  /**
+   * Whether to resume from the checkpoints, running only the stages after the checkpoint.
+   */
+  public static final String RESUME_PROPERTY = "nlptools.checkpoint.resume";
+
+  /**
+   * Threads per stage, as in {@code parser=4,writer=1}; stages not listed get one. If set, the reader,
+   * the stages and the writer run on threads of their own, joined by bounded queues, see
+   * {@link StagedPipeline}. Sentence-local stages that share a sentence cache form one stage, which
+   * gets the most threads of any of them.
+   */
+  public static final String STAGE_THREADS_PROPERTY = "nlptools.stageThreads";
+
+  /**
+   * Documents that may wait in front of every stage of a staged run. Defaults to 4.
+   */
+  public static final String STAGE_QUEUE_CAPACITY_PROPERTY = "nlptools.stageQueueCapacity";
+
+  /**
+   * Engines to annotate with, trading accuracy for throughput; one of {@link #PROFILES}. Defaults to
+   * {@value #ACCURATE_PROFILE}. Every profile fills the same columns of the output.
+   */
+  public static final String PROFILE_PROPERTY = "nlptools.profile";
+
+  /**
+   * Stanford segmenter, OpenNLP tagger and MaltParser; many times the throughput of the others.
+   */
+  public static final String FAST_PROFILE = "fast";
+
+  /**
+   * Stanford segmenter, OpenNLP tagger and the PCFG variant of the Stanford parser, with MaltParser for
+   * sentences beyond {@link #PARSER_MAX_TOKENS_PROPERTY}.
+   */
+  public static final String BALANCED_PROFILE = "balanced";
+
+  /**
+   * Stanford segmenter, OpenNLP tagger and the default Stanford parser, with its PCFG variant for
+   * sentences beyond {@link #PARSER_MAX_TOKENS_PROPERTY}.
+   */
+  public static final String ACCURATE_PROFILE = "accurate";
+
+  public static final List<String> PROFILES = Collections.unmodifiableList(
+    asList(FAST_PROFILE, BALANCED_PROFILE, ACCURATE_PROFILE));
+
+  /**
+   * Columns of the output, as in {@code ${form}, ${pos}}; see {@link ConllUniWriter#PARAM_ROW_FORMAT}.
+   * Defaults to all columns of CoNLL 2009. Stages that fill none of the columns are not run.
+   */
+  public static final String ROW_FORMAT_PROPERTY = "nlptools.rowFormat";
+
+  public static final String SEGMENTER_STAGE = "segmenter";
+
+  public static final String TAGGER_STAGE = "tagger";
+
+  public static final String PARSER_STAGE = "parser";
+
+  public static final String LEMMATIZER_STAGE = "lemmatizer";
+
+  public static final String CHECKPOINT_WRITER_STAGE = "checkpoint";
+
+  public static final String WRITER_STAGE = "writer";
+
+  /**
+   * Stages of the engine chain in order. Only the segmenter sees whole documents; the others are
+   * sentence-local.
+   */
+  public static final List<String> STAGES = Collections.unmodifiableList(
+    asList(SEGMENTER_STAGE, TAGGER_STAGE, PARSER_STAGE, LEMMATIZER_STAGE));
+
+  private static final long WORK_QUEUE_POLL_MILLIS = 5000;
+
+  private static final Logger LOG = UIMAFramework.getLogger(Pipeline.class);
+
+  static final String WARM_UP_TEXT = "This is a short sentence to load the models .";
+
+  /**
+   * @return output settings of the writer, shared with {@link AnnotationServer}.
+   */
+  static Object[] writerParameters() {
+    return new Object[] {
       ConllUniWriter.FIELD_SEPARATOR, "|",
-      ConllUniWriter.PARAM_TARGET_LOCATION, ".");
+      ConllUniWriter.PARAM_INCLUDE_HEADER, true,
+      ConllUniWriter.PARAM_ROW_FORMAT, getRowFormat()};
+  }
+
+  public static void main(String[] args) throws Exception {
+    String queueLocation = System.getProperty(WORK_QUEUE_PROPERTY);
+    WorkQueue queue = queueLocation == null ? null
+      : new WorkQueue(new File(queueLocation), Long.getLong(WORK_QUEUE_LEASE_PROPERTY, 600) * 1000);
+    if (queue != null && COORDINATOR_ROLE.equals(System.getProperty(WORK_QUEUE_ROLE_PROPERTY, WORKER_ROLE))) {
+      coordinate(queue);
+      return;
+    }
+
+    int windowChars = Integer.getInteger(WINDOW_CHARS_PROPERTY, 0);
+    boolean streaming = windowChars > 0;
+
+    String checkpointLocation = System.getProperty(CHECKPOINT_PROPERTY);
+    int checkpointStage = checkpointLocation == null ? -1
+      : STAGES.indexOf(System.getProperty(CHECKPOINT_AFTER_PROPERTY, PARSER_STAGE));
+    boolean resume = checkpointLocation != null && Boolean.getBoolean(RESUME_PROPERTY);
+    if (checkpointLocation != null) {
+      if (checkpointStage < 0) {
+        throw new IllegalArgumentException(CHECKPOINT_AFTER_PROPERTY + " must be one of " + STAGES);
+      }
+      if (streaming) {
+        throw new IllegalArgumentException("Checkpoints need whole documents, unset " + WINDOW_CHARS_PROPERTY);
+      }
+      if (resume && (queue != null || System.getProperty(RESULT_CACHE_PROPERTY) != null)) {
+        throw new IllegalArgumentException("Resuming from checkpoints reads no source documents, unset "
+          + WORK_QUEUE_PROPERTY + " and " + RESULT_CACHE_PROPERTY);
+      }
+    }
+
+    CollectionReaderDescription reader = resume ? createCheckpointReader(checkpointLocation)
+      : createSourceReader(windowChars);
+
+    boolean warmUp = isWarmUpEnabled();
+    if (warmUp) {
+      shareModels();
+    }
+
+    // Stages up to the checkpoint, and after it
+    List<StagedPipeline.Stage> stages = new ArrayList<>();
+    int checkpointIndex = -1;
+    if (checkpointStage >= 0 && !resume) {
+      stages.addAll(createStages(0, checkpointStage + 1));
+      checkpointIndex = stages.size();
+    }
+    stages.addAll(createStages(checkpointStage + 1, STAGES.size()));
+    AnalysisEngineDescription[] annotators = StagedPipeline.engines(stages);
+    List<Object> writerParameters = new ArrayList<>(asList(writerParameters()));
+    writerParameters.addAll(asList(
+      ConllUniWriter.PARAM_APPEND_SEGMENTS, streaming,
+      ConllUniWriter.PARAM_FILENAME_SUFFIX, FILENAME_SUFFIX,
+      ConllUniWriter.PARAM_TARGET_LOCATION, TARGET_LOCATION));
+    AnalysisEngineDescription writer = createEngineDescription(ConllUniWriter.class, writerParameters.toArray());
+
+    String cacheLocation = System.getProperty(RESULT_CACHE_PROPERTY);
+    ResultCache cache = null;
+    if (cacheLocation != null) {
+      List<XMLizable> configuration = new ArrayList<>();
+      configuration.add(reader);
+      configuration.addAll(asList(annotators));
+      configuration.add(writer);
+      String fingerprint = ResultCache.fingerprint(configuration.toArray(new XMLizable[configuration.size()]));
+      cache = new ResultCache(new File(cacheLocation), fingerprint);
+      if (queue == null) {
+        List<String> changed = restoreUnchanged(cache, listSources());
+        if (changed.isEmpty()) {
+          return;
+        }
+        reader = createReader(windowChars, changed);
+      }
+
+      writerParameters.addAll(asList(
+        ConllUniWriter.PARAM_RESULT_CACHE, cacheLocation,
+        ConllUniWriter.PARAM_RESULT_CACHE_FINGERPRINT, fingerprint,
+        ConllUniWriter.PARAM_OVERWRITE, true));
+      writer = createEngineDescription(ConllUniWriter.class, writerParameters.toArray());
+    } else if (queue != null) {
+      // A chunk reclaimed from a worker that died meets the output that worker already wrote
+      writerParameters.addAll(asList(ConllUniWriter.PARAM_OVERWRITE, true));
+      writer = createEngineDescription(ConllUniWriter.class, writerParameters.toArray());
+    }
+
+    // Not part of the fingerprint, as the output is the same for any number of threads
+    int renderThreads = Integer.getInteger(RENDER_THREADS_PROPERTY, 1);
+    if (renderThreads > 1 && !streaming) {
+      writerParameters.addAll(asList(ConllUniWriter.PARAM_RENDER_THREADS, renderThreads));
+      writer = createEngineDescription(ConllUniWriter.class, writerParameters.toArray());
+    }
 
-    runPipeline(
-      reader, segmenter,
-      createEngineDescription(OpenNlpPosTagger.class),
-      createEngineDescription(LanguageToolLemmatizer.class),
-      parser, writer);
+    if (checkpointIndex >= 0) {
+      stages.add(checkpointIndex, new StagedPipeline.Stage(CHECKPOINT_WRITER_STAGE, 1,
+        createEngineDescription(CasCheckpointWriter.class,
+          CasCheckpointWriter.PARAM_TARGET_LOCATION, checkpointLocation,
+          CasCheckpointWriter.PARAM_OVERWRITE, true)));
+    }
+    stages.add(new StagedPipeline.Stage(WRITER_STAGE, stageThreads(WRITER_STAGE), writer));
+
+    boolean staged = System.getProperty(STAGE_THREADS_PROPERTY) != null;
+    if (staged && queue != null) {
+      throw new IllegalArgumentException("The work queue runs chunks in parallel itself, unset " + STAGE_THREADS_PROPERTY);
+    }
+    if (queue != null && Boolean.TRUE.equals(writer.getAnalysisEngineMetaData().getConfigurationParameterSettings()
+      .getParameterValue(ConllUniWriter.PARAM_SHARDED_OUTPUT))) {
+      // Workers on other nodes would append to the same shards and index
+      throw new IllegalArgumentException("Sharded output cannot be combined with " + WORK_QUEUE_PROPERTY);
+    }
+    boolean metrics = Boolean.getBoolean(METRICS_PROPERTY);
+    if (metrics && staged) {
+      // Probes keep time per thread, so every stage gets its own
+      List<AnalysisEngineDescription[]> segments = new ArrayList<>(stages.size());
+      for (StagedPipeline.Stage stage : stages) {
+        segments.add(stage.getEngines());
+      }
+      segments = StageProbe.instrument(segments);
+      for (int i = 0; i < stages.size(); i++) {
+        stages.set(i, stages.get(i).withEngines(segments.get(i)));
+      }
+    }
+    AnalysisEngineDescription[] chain = StagedPipeline.engines(stages);
+    if (metrics) {
+      if (!staged) {
+        chain = StageProbe.instrument(chain);
+      }
+      startMetrics();
+    }
+
+    if (warmUp) {
+      SharedModels.warmUp("en", WARM_UP_TEXT, annotators);
+    }
+
+    int threadCount = Integer.getInteger(THREADS_PROPERTY, 1);
+    if (queue != null) {
+      work(queue, windowChars, cache, streaming ? 1 : Math.max(1, threadCount), chain);
+    } else if (staged) {
+      for (StagedPipeline.Stage stage : stages) {
+        if (streaming && stage.getThreads() > 1) {
+          throw new IllegalArgumentException("Windows of a document must stay in order, run stage ["
+            + stage.getName() + "] on one thread");
+        }
+      }
+      StagedPipeline.runPipeline(reader, Integer.getInteger(STAGE_QUEUE_CAPACITY_PROPERTY, 4), stages);
+    } else if (threadCount > 1 && !streaming) {
+      ParallelPipeline.runPipeline(threadCount, reader, chain);
+    } else {
+      runPipeline(reader, chain);
+    }
+
+    if (metrics) {
+      stopMetrics();
+    }
+  }
+
+  private static CollectionReaderDescription createReader(int windowChars, String... patterns)
+    throws ResourceInitializationException {
+    if (windowChars > 0) {
+      return createReaderDescription(
+        WindowedTextReader.class,
+        WindowedTextReader.PARAM_SOURCE_LOCATION, SOURCE_LOCATION,
+        WindowedTextReader.PARAM_PATTERNS, patterns,
+        WindowedTextReader.PARAM_LANGUAGE, "en",
+        WindowedTextReader.PARAM_MAX_WINDOW_CHARS, windowChars);
+    }
+    return createReaderDescription(
+      ParallelTextReader.class,
+      ParallelTextReader.PARAM_SOURCE_LOCATION, SOURCE_LOCATION,
+      ParallelTextReader.PARAM_PATTERNS, patterns,
+      ParallelTextReader.PARAM_LANGUAGE, "en");
+  }
+
+  /**
+   * @return the reader of exactly the given sources, named as by {@link #listSources}.
+   */
+  private static CollectionReaderDescription createReader(int windowChars, List<String> sources)
+    throws ResourceInitializationException {
+    if (windowChars > 0) {
+      return createReader(windowChars, toPatterns(sources));
+    }
+    // Not as patterns, in which brackets and braces of file names would be glob syntax
+    return createReaderDescription(
+      ParallelTextReader.class,
+      ParallelTextReader.PARAM_SOURCE_LOCATION, SOURCE_LOCATION,
+      ParallelTextReader.PARAM_FILES, toPaths(sources),
+      ParallelTextReader.PARAM_LANGUAGE, "en");
+  }
+
+  /**
+   * @return the reader of all source documents, those of the manifest if there is one.
+   */
+  private static CollectionReaderDescription createSourceReader(int windowChars)
+    throws ResourceInitializationException, IOException {
+    String manifest = System.getProperty(MANIFEST_PROPERTY);
+    if (manifest == null) {
+      return createReader(windowChars, SOURCE_PATTERN);
+    }
+    if (windowChars > 0) {
+      return createReader(windowChars, listSources());
+    }
+    return createReaderDescription(
+      ParallelTextReader.class,
+      ParallelTextReader.PARAM_SOURCE_LOCATION, SOURCE_LOCATION,
+      ParallelTextReader.PARAM_MANIFEST, manifest,
+      ParallelTextReader.PARAM_LANGUAGE, "en");
+  }
+
+  private static CollectionReaderDescription createCheckpointReader(String checkpointLocation)
+    throws ResourceInitializationException {
+    return createReaderDescription(
+      CasCheckpointReader.class,
+      CasCheckpointReader.PARAM_SOURCE_LOCATION, checkpointLocation,
+      CasCheckpointReader.PARAM_PATTERNS, "**/*" + CasCheckpointWriter.FILENAME_EXTENSION,
+      CasCheckpointReader.PARAM_TYPE_SYSTEM_LOCATION,
+      new File(checkpointLocation, CasCheckpointWriter.TYPE_SYSTEM_FILE).getPath());
+  }
+
+  /**
+   * @return the paths of the source documents relative to the source location, as the writer derives
+   *         them from the document and base URIs, in order.
+   */
+  private static List<String> listSources() throws IOException {
+    List<String> sources = new ArrayList<>();
+    Path sourceDirectory = Paths.get(SOURCE_LOCATION);
+    String manifest = System.getProperty(MANIFEST_PROPERTY);
+    if (manifest != null) {
+      for (String line : Files.readAllLines(Paths.get(manifest), StandardCharsets.UTF_8)) {
+        line = line.trim().replace('\\', '/');
+        if (!line.isEmpty()) {
+          sources.add(sourceDirectory.toUri().relativize(sourceDirectory.resolve(line).toUri()).getRawPath());
+        }
+      }
+    } else {
+      try (DirectoryStream<Path> paths = Files.newDirectoryStream(sourceDirectory, SOURCE_PATTERN)) {
+        for (Path source : paths) {
+          sources.add(sourceDirectory.toUri().relativize(source.toUri()).getRawPath());
+        }
+      }
+    }
+    Collections.sort(sources);
+    return sources;
+  }
+
+  /**
+   * @return the file paths of the sources, relative to the source location.
+   */
+  private static String[] toPaths(List<String> sources) {
+    String[] paths = new String[sources.size()];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = URI.create(sources.get(i)).getPath();
+    }
+    return paths;
+  }
+
+  /**
+   * @return Ant patterns of {@link ResourceCollectionReaderBase} that select exactly the given sources,
+   *         unless their names contain {@code *} or {@code ?}.
+   */
+  private static String[] toPatterns(List<String> sources) {
+    String[] patterns = toPaths(sources);
+    for (int i = 0; i < patterns.length; i++) {
+      patterns[i] = ResourceCollectionReaderBase.INCLUDE_PREFIX + patterns[i];
+    }
+    return patterns;
+  }
+
+  /**
+   * Restores the output of every given source that is cached.
+   *
+   * @return the sources that are not, empty if none.
+   */
+  private static List<String> restoreUnchanged(ResultCache cache, List<String> sources) throws IOException {
+    List<String> changed = new ArrayList<>();
+    for (String source : sources) {
+      File sourceFile = new File(SOURCE_LOCATION, URI.create(source).getPath());
+      File target = new File(TARGET_LOCATION, source + FILENAME_SUFFIX);
+      if (!cache.restore(cache.key(sourceFile), target)) {
+        changed.add(source);
+      }
+    }
+    LOG.log(Level.INFO, "Restored " + (sources.size() - changed.size()) + " of " + sources.size() + " documents "
+      + "from the result cache, annotating " + changed.size());
+    return changed;
+  }
+
+  /**
+   * Enqueues the source documents unless they are already, then waits until the workers are done.
+   */
+  private static void coordinate(WorkQueue queue) throws IOException, InterruptedException {
+    List<String> sources = listSources();
+    if (queue.enqueue(sources, Integer.getInteger(WORK_QUEUE_CHUNK_PROPERTY, 16))) {
+      LOG.log(Level.INFO, "Enqueued " + sources.size() + " documents");
+    }
+    while (!queue.isFinished()) {
+      int reclaimed = queue.reclaimExpired();
+      if (reclaimed > 0) {
+        LOG.log(Level.WARNING, "Put back " + reclaimed + " chunks with expired leases");
+      }
+      LOG.log(Level.INFO, queue.toString());
+      Thread.sleep(WORK_QUEUE_POLL_MILLIS);
+    }
+    LOG.log(Level.INFO, queue.toString());
+  }
+
+  /**
+   * Processes chunks of the queue until it is finished, with engines that are created once and reused
+   * for every chunk.
+   */
+  private static void work(WorkQueue queue, int windowChars, ResultCache cache, int threadCount,
+                           AnalysisEngineDescription[] chain) throws Exception {
+    AnalysisEngineDescription aaeDesc = createEngineDescription(chain);
+    List<AnalysisEngine> engines = new ArrayList<>(threadCount);
+    ScheduledExecutorService renewal = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "lease-renewal");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      for (int i = 0; i < threadCount; i++) {
+        engines.add(createEngine(aaeDesc));
+      }
+
+      int chunks = 0;
+      while (true) {
+        WorkQueue.Lease lease = queue.claim();
+        if (lease == null) {
+          if (queue.isFinished()) {
+            break;
+          }
+          // Wait for the coordinator, or for the leases of others to complete or expire
+          Thread.sleep(WORK_QUEUE_POLL_MILLIS);
+          continue;
+        }
+
+        long renewMillis = Math.max(1, Long.getLong(WORK_QUEUE_LEASE_PROPERTY, 600) * 1000 / 3);
+        ScheduledFuture<?> renewing = renewal.scheduleAtFixedRate(() -> {
+          try {
+            if (!lease.renew()) {
+              LOG.log(Level.WARNING, "Lease of " + lease + " expired; another worker will process it again");
+            }
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to renew the lease of " + lease, e);
+          }
+        }, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+        try {
+          List<String> sources = cache == null ? lease.getItems() : restoreUnchanged(cache, lease.getItems());
+          if (!sources.isEmpty()) {
+            ParallelPipeline.runPipeline(createReader(windowChars, sources), engines);
+          }
+        } catch (UIMAException | IOException | RuntimeException e) {
+          LOG.log(Level.SEVERE, "Failed to process " + lease, e);
+          lease.fail(e);
+          continue;
+        } finally {
+          renewing.cancel(false);
+        }
+        if (lease.complete()) {
+          chunks++;
+        }
+      }
+      LOG.log(Level.INFO, "Processed " + chunks + " chunks as " + queue.getOwner() + "; " + queue);
+    } finally {
+      renewal.shutdownNow();
+      LifeCycleUtil.destroy(engines.toArray(new AnalysisEngine[engines.size()]));
+    }
+  }
+
+  static void startMetrics() {
+    PipelineMetrics.get().register();
+    long period = Long.getLong(METRICS_PERIOD_PROPERTY, 0);
+    if (period > 0) {
+      PipelineMetrics.get().startReporting(period);
+    }
+  }
+
+  static void stopMetrics() throws IOException {
+    PipelineMetrics metrics = PipelineMetrics.get();
+    metrics.stopReporting();
+    LOG.log(Level.INFO, metrics.getSummary());
+
+    String json = System.getProperty(METRICS_JSON_PROPERTY);
+    if (json != null) {
+      Files.write(Paths.get(json), metrics.getJson().getBytes(StandardCharsets.UTF_8));
+    } else {
+      LOG.log(Level.INFO, metrics.getJson());
+    }
+  }
+
+  static boolean isWarmUpEnabled() {
+    return Boolean.parseBoolean(System.getProperty(WARM_UP_PROPERTY, "true"));
+  }
+
+  /**
+   * @return the engine chain up to, but excluding, the writer.
+   */
+  static AnalysisEngineDescription[] createAnnotators() throws ResourceInitializationException {
+    return createAnnotators(0, STAGES.size());
+  }
+
+  /**
+   * @return the engines of the {@link #STAGES} from {@code from} up to, but excluding, {@code to}.
+   */
+  static AnalysisEngineDescription[] createAnnotators(int from, int to) throws ResourceInitializationException {
+    return StagedPipeline.engines(createStages(from, to));
+  }
+
+  /**
+   * @return the {@link #STAGES} from {@code from} up to, but excluding, {@code to}, with the threads
+   *         that {@link #STAGE_THREADS_PROPERTY} gives them.
+   */
+  static List<StagedPipeline.Stage> createStages(int from, int to) throws ResourceInitializationException {
+    List<StagedPipeline.Stage> stages = new ArrayList<>();
+    if (from == 0 && to > 0) {
+      // The same in every profile: BatchingAnnotator relies on two newlines ending a sentence
+      stages.add(new StagedPipeline.Stage(SEGMENTER_STAGE, stageThreads(SEGMENTER_STAGE),
+        createEngineDescription(StanfordSegmenter.class)));
+    }
+
+    Set<String> planned = planStages(getRowFormat());
+    List<String> names = new ArrayList<>();
+    for (String name : STAGES.subList(Math.min(Math.max(from, 1), to), to)) {
+      if (planned.contains(name)) {
+        names.add(name);
+      }
+    }
+    if (names.isEmpty()) {
+      return stages;
+    }
+    int cacheEntries = Integer.getInteger(SENTENCE_CACHE_PROPERTY, 0);
+    if (cacheEntries > 0) {
+      AnalysisEngineDescription[] sentenceLocal = new AnalysisEngineDescription[names.size()];
+      for (int i = 0; i < sentenceLocal.length; i++) {
+        sentenceLocal[i] = createSentenceLocal(names.get(i));
+      }
+      // Engines on either side of a checkpoint cache what they add separately
+      String name = String.join("+", names);
+      String cacheName = from <= 1 && to == STAGES.size() ? SentenceCache.DEFAULT_NAME : name;
+      stages.add(new StagedPipeline.Stage(name, stageThreads(names.toArray(new String[names.size()])),
+        SentenceCache.wrap(cacheName, cacheEntries, sentenceLocal)));
+    } else {
+      for (String name : names) {
+        stages.add(new StagedPipeline.Stage(name, stageThreads(name), createSentenceLocal(name)));
+      }
+    }
+    return stages;
+  }
+
+  /**
+   * @return the {@link #STAGES} that fill a column of the row format, and the tagger if the parser or
+   *         the lemmatizer runs, as both read the tags. The writer drops the annotations of the others,
+   *         so they need not run. No stage fills the morphology and semantic role columns.
+   */
+  static Set<String> planStages(String rowFormat) {
+    int[] fieldSlots = ConllUniWriter.compileFieldSlots(rowFormat);
+    boolean lemmas = hasAny(fieldSlots, ConllFieldWriter.LEMMA_FIELD, ConllFieldWriter.PLEMMA_FIELD);
+    boolean dependencies = hasAny(fieldSlots, ConllFieldWriter.HEAD_FIELD, ConllFieldWriter.PHEAD_FIELD,
+      ConllFieldWriter.DEPREL_FIELD, ConllFieldWriter.PDEPREL_FIELD);
+    // The parser and the lemmatizer read the tags, so that their columns are the same with and without
+    // the tag columns
+    boolean tags = dependencies || lemmas
+      || hasAny(fieldSlots, ConllFieldWriter.POS_FIELD, ConllFieldWriter.PPOS_FIELD);
+
+    // Tokens and sentences make up the rows, whatever the columns
+    Set<String> planned = new LinkedHashSet<>();
+    planned.add(SEGMENTER_STAGE);
+    if (tags) {
+      planned.add(TAGGER_STAGE);
+    }
+    if (dependencies) {
+      planned.add(PARSER_STAGE);
+    }
+    if (lemmas) {
+      planned.add(LEMMATIZER_STAGE);
+    }
+    return planned;
+  }
+
+  private static boolean hasAny(int[] fieldSlots, int... fieldIds) {
+    for (int fieldId : fieldIds) {
+      if (fieldSlots[fieldId] >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static String getRowFormat() {
+    return System.getProperty(ROW_FORMAT_PROPERTY, ConllUniWriter.DEFAULT_CONLL2009_ROW_FORMAT);
+  }
+
+  /**
+   * @return the most threads that {@link #STAGE_THREADS_PROPERTY} gives any of the stages, at least 1.
+   */
+  private static int stageThreads(String... stages) {
+    String setting = System.getProperty(STAGE_THREADS_PROPERTY, "");
+    int threads = 1;
+    for (String entry : setting.split(",")) {
+      if (entry.trim().isEmpty()) {
+        continue;
+      }
+      String[] nameAndThreads = entry.split("=");
+      if (nameAndThreads.length != 2) {
+        throw new IllegalArgumentException(STAGE_THREADS_PROPERTY + " must be like parser=4,writer=1, got " + setting);
+      }
+      if (asList(stages).contains(nameAndThreads[0].trim())) {
+        threads = Math.max(threads, Integer.parseInt(nameAndThreads[1].trim()));
+      }
+    }
+    return threads;
+  }
+
+  private static AnalysisEngineDescription createSentenceLocal(String stage) throws ResourceInitializationException {
+    switch (stage) {
+      case TAGGER_STAGE:
+        return createEngineDescription(OpenNlpPosTagger.class);
+      case PARSER_STAGE:
+        return createParser();
+      case LEMMATIZER_STAGE:
+        return createEngineDescription(LanguageToolLemmatizer.class);
+      default:
+        throw new IllegalArgumentException("Not a sentence-local stage: " + stage);
+    }
+  }
+
+  private static AnalysisEngineDescription createParser() throws ResourceInitializationException {
+    String profile = getProfile();
+    AnalysisEngineDescription parser;
+    switch (profile) {
+      case FAST_PROFILE:
+        parser = createEngineDescription(MaltParser.class);
+        break;
+      case BALANCED_PROFILE:
+        parser = createEngineDescription(StanfordParser.class, StanfordParser.PARAM_VARIANT, PCFG_PARSER_VARIANT);
+        break;
+      default:
+        parser = createEngineDescription(StanfordParser.class);
+        break;
+    }
+    int parserThreads = Integer.getInteger(PARSER_THREADS_PROPERTY, 0);
+    if (parserThreads <= 0) {
+      return parser;
+    }
+
+    // MaltParser takes time linear in the sentence length, so it needs no fallback
+    int maxTokens = FAST_PROFILE.equals(profile) ? 0 : Integer.getInteger(PARSER_MAX_TOKENS_PROPERTY, 0);
+    AnalysisEngineDescription fallback = null;
+    if (maxTokens > 0) {
+      fallback = BALANCED_PROFILE.equals(profile) ? createEngineDescription(MaltParser.class)
+        : createEngineDescription(StanfordParser.class, StanfordParser.PARAM_VARIANT, PCFG_PARSER_VARIANT);
+    }
+    return ScheduledParser.describe(ScheduledParser.DEFAULT_POOL_NAME, parserThreads, parser, maxTokens, fallback);
+  }
+
+  /**
+   * @return the profile that {@link #PROFILE_PROPERTY} selects.
+   */
+  static String getProfile() {
+    String profile = System.getProperty(PROFILE_PROPERTY, ACCURATE_PROFILE);
+    if (!PROFILES.contains(profile)) {
+      throw new IllegalArgumentException(PROFILE_PROPERTY + " must be one of " + PROFILES + ", got " + profile);
+    }
+    return profile;
+  }
 
+  /**
+   * Makes the engines of the profile that can share their models across threads do so, see
+   * {@link SharedModels}.
+   */
+  static void shareModels() {
+    // Only the Stanford parser is known to treat its model as read-only
+    if (!FAST_PROFILE.equals(getProfile())) {
+      SharedModels.share(StanfordParser.class);
+    }
   }
 
 }
@@ -0,0 +1,138 @@
+package org.mos91.nlptools;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngine;
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
+
+import org.apache.uima.UIMAException;
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.fit.util.LifeCycleUtil;
+import org.apache.uima.util.CasCreationUtils;
+import org.apache.uima.util.Level;
+import org.apache.uima.util.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads the models of the engine chain once per JVM, before the first document.
+ *
+ * DKPro loads models lazily, on the first CAS an engine sees, and into every engine instance of its
+ * own. {@link #share(Class[])} switches components to the JVM-wide model cache of the DKPro resource
+ * providers, so that all instances use one copy. Only components that treat their model as read-only
+ * may be shared across threads: {@code StanfordParser} qualifies, since it runs every sentence through
+ * a fresh parser query; {@code OpenNlpPosTagger} does not, its resource is a stateful tagger.
+ *
+ * {@link #warmUp(String, String, AnalysisEngineDescription...)} then runs a short text through one
+ * instance of every engine, which loads the models and reports load time and heap per engine. These
+ * instances are kept until {@link #release()}, since the DKPro cache only holds models that are in use;
+ * they also make sure that shared models are in the cache before parallel workers look them up.
+ */
+public final class SharedModels {
+
+  /**
+   * System property prefix by which DKPro providers of a component class use the shared cache.
+   */
+  public static final String SHARABLE_PROPERTY_PREFIX = "dkpro.core.resourceprovider.sharable.";
+
+  private static final Logger LOG = UIMAFramework.getLogger(SharedModels.class);
+
+  private static final List<AnalysisEngine> warmEngines = new ArrayList<>();
+
+  private SharedModels() {
+  }
+
+  /**
+   * Makes instances of the components created from now on share their models. The components must
+   * not modify their models, see the class comment.
+   */
+  public static void share(Class<?>... components) {
+    for (Class<?> component : components) {
+      System.setProperty(SHARABLE_PROPERTY_PREFIX + component.getName(), "true");
+    }
+  }
+
+  /**
+   * Runs {@code text} through one instance of every engine, in order, so that each sees the
+   * annotations of the ones before. Writers and other engines with side effects must not be passed.
+   *
+   * @return load time and heap of every engine, in order.
+   */
+  public static synchronized List<Load> warmUp(String language, String text, AnalysisEngineDescription... descs)
+    throws UIMAException {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    CAS cas = CasCreationUtils.createCas(createEngineDescription(descs));
+    cas.setDocumentLanguage(language);
+    cas.setDocumentText(text);
+
+    List<Load> loads = new ArrayList<>(descs.length);
+    for (AnalysisEngineDescription desc : descs) {
+      memory.gc();
+      long heapBefore = memory.getHeapMemoryUsage().getUsed();
+      long start = System.nanoTime();
+
+      AnalysisEngine engine = createEngine(desc);
+      warmEngines.add(engine);
+      engine.process(cas);
+
+      long millis = (System.nanoTime() - start) / 1000000;
+      memory.gc();
+      long heapBytes = Math.max(0, memory.getHeapMemoryUsage().getUsed() - heapBefore);
+
+      Load load = new Load(desc.getAnalysisEngineMetaData().getName(), millis, heapBytes);
+      LOG.log(Level.INFO, load.toString());
+      loads.add(load);
+    }
+    return Collections.unmodifiableList(loads);
+  }
+
+  /**
+   * Destroys the engines of all warm-ups. Shared models are dropped from the cache once no other
+   * engine uses them.
+   */
+  public static synchronized void release() {
+    LifeCycleUtil.destroy(warmEngines.toArray(new AnalysisEngine[warmEngines.size()]));
+    warmEngines.clear();
+  }
+
+  /**
+   * Warm-up figures of an engine. The heap is the growth of the used heap between two collections,
+   * so it is an estimate, and 0 for models that were already loaded.
+   */
+  public static final class Load {
+
+    private final String engine;
+
+    private final long millis;
+
+    private final long heapBytes;
+
+    private Load(String engine, long millis, long heapBytes) {
+      this.engine = engine;
+      this.millis = millis;
+      this.heapBytes = heapBytes;
+    }
+
+    public String getEngine() {
+      return engine;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+
+    public long getHeapBytes() {
+      return heapBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "Warmed up [" + engine + "] in " + millis + " ms, heap +" + (heapBytes >> 20) + " MB";
+    }
+  }
+}
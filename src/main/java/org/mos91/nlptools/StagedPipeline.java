@@ -0,0 +1,310 @@
+package org.mos91.nlptools;
+
+import static java.util.Arrays.asList;
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngine;
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
+import static org.apache.uima.fit.factory.CollectionReaderFactory.createReader;
+
+import org.apache.uima.UIMAException;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.collection.CollectionReader;
+import org.apache.uima.collection.CollectionReaderDescription;
+import org.apache.uima.fit.util.LifeCycleUtil;
+import org.apache.uima.resource.metadata.MetaDataObject;
+import org.apache.uima.util.CasCreationUtils;
+import org.mos91.nlptools.metrics.PipelineMetrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the reader and the stages of a chain on threads of their own, joined by bounded queues, so that
+ * reading, annotating and writing overlap and a slow stage can be given more threads than the others.
+ * Every thread of a stage owns its own instance of the stage's engines.
+ *
+ * CASes come from a fixed pool that is just large enough to fill every queue, so a stage that falls
+ * behind holds up the ones before it rather than letting documents pile up in memory. The queues are
+ * registered with {@link PipelineMetrics}, whose depths tell which stage needs more threads.
+ *
+ * With a single thread per stage, documents reach every stage in reading order; with more, in any
+ * order. Engines that pass state between each other on their thread, such as the two halves of a
+ * {@link org.mos91.nlptools.cache.SentenceCache#wrap}, must be in the same stage.
+ */
+public final class StagedPipeline {
+
+  /**
+   * Marks the end of the collection in a queue.
+   */
+  private static final Item END = new Item(null);
+
+  /**
+   * How often threads that wait on a queue check whether another one failed; engines may swallow the
+   * interrupt that would otherwise wake them.
+   */
+  private static final long FAILURE_CHECK_MILLIS = 100;
+
+  private StagedPipeline() {
+  }
+
+  /**
+   * @param queueCapacity documents that may wait in front of every stage.
+   */
+  public static void runPipeline(CollectionReaderDescription readerDesc, int queueCapacity, List<Stage> stages)
+    throws UIMAException, IOException {
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("queueCapacity must be positive, got " + queueCapacity);
+    }
+    if (stages.isEmpty()) {
+      throw new IllegalArgumentException("No stages");
+    }
+
+    CollectionReader reader = createReader(readerDesc);
+    List<List<AnalysisEngine>> engines = new ArrayList<>(stages.size());
+    ExecutorService executor = null;
+    try {
+      List<MetaDataObject> metaData = new ArrayList<>();
+      metaData.add(reader.getMetaData());
+      int threadCount = 1;
+      for (Stage stage : stages) {
+        AnalysisEngineDescription aaeDesc = createEngineDescription(stage.engines);
+        List<AnalysisEngine> stageEngines = new ArrayList<>(stage.threads);
+        engines.add(stageEngines);
+        for (int i = 0; i < stage.threads; i++) {
+          stageEngines.add(createEngine(aaeDesc));
+        }
+        metaData.add(stageEngines.get(0).getMetaData());
+        threadCount += stage.threads;
+      }
+
+      // Enough CASes to fill every queue and keep every thread busy
+      CAS firstCas = CasCreationUtils.createCas(metaData);
+      reader.typeSystemInit(firstCas.getTypeSystem());
+      int casCount = stages.size() * queueCapacity + threadCount;
+      BlockingQueue<Item> free = new ArrayBlockingQueue<>(casCount);
+      free.add(new Item(firstCas));
+      for (int i = 1; i < casCount; i++) {
+        free.add(new Item(CasCreationUtils.createCas(metaData, firstCas.getTypeSystem(), null)));
+      }
+
+      List<BlockingQueue<Item>> queues = new ArrayList<>(stages.size());
+      List<PipelineMetrics.QueueDepth> depths = new ArrayList<>(stages.size());
+      for (Stage stage : stages) {
+        BlockingQueue<Item> queue = new ArrayBlockingQueue<>(queueCapacity);
+        queues.add(queue);
+        depths.add(PipelineMetrics.get().queue(stage.name, queue, queueCapacity));
+      }
+
+      executor = Executors.newFixedThreadPool(threadCount);
+      CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+      AtomicBoolean failed = new AtomicBoolean();
+      completion.submit(() -> {
+        read(reader, free, queues.get(0), depths.get(0), failed);
+        return null;
+      });
+      for (int s = 0; s < stages.size(); s++) {
+        BlockingQueue<Item> in = queues.get(s);
+        boolean last = s == stages.size() - 1;
+        BlockingQueue<Item> out = last ? free : queues.get(s + 1);
+        PipelineMetrics.QueueDepth outDepth = last ? null : depths.get(s + 1);
+        AtomicInteger running = new AtomicInteger(stages.get(s).threads);
+        for (AnalysisEngine engine : engines.get(s)) {
+          completion.submit(() -> {
+            annotate(engine, in, out, outDepth, running, last, failed);
+            return null;
+          });
+        }
+      }
+      executor.shutdown();
+
+      Throwable failure = null;
+      for (int i = 0; i < threadCount; i++) {
+        try {
+          completion.take().get();
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause();
+            // Stop the threads that wait for the failed one
+            failed.set(true);
+            executor.shutdownNow();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new AnalysisEngineProcessException(e);
+        }
+      }
+      // Drop the end markers, so that the queues report empty
+      for (BlockingQueue<Item> queue : queues) {
+        queue.clear();
+      }
+      ParallelPipeline.rethrow(failure);
+
+      for (List<AnalysisEngine> stageEngines : engines) {
+        for (AnalysisEngine engine : stageEngines) {
+          engine.collectionProcessComplete();
+        }
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      LifeCycleUtil.destroy(reader);
+      for (List<AnalysisEngine> stageEngines : engines) {
+        LifeCycleUtil.destroy(stageEngines.toArray(new AnalysisEngine[stageEngines.size()]));
+      }
+    }
+  }
+
+  private static void read(CollectionReader reader, BlockingQueue<Item> free, BlockingQueue<Item> out,
+                           PipelineMetrics.QueueDepth outDepth, AtomicBoolean failed) throws Exception {
+    while (true) {
+      Item item = take(free, failed);
+      if (item == null) {
+        return;
+      }
+      if (!reader.hasNext()) {
+        break;
+      }
+      reader.getNext(item.cas);
+      put(out, item, outDepth, failed);
+    }
+    put(out, END, null, failed);
+  }
+
+  private static void annotate(AnalysisEngine engine, BlockingQueue<Item> in, BlockingQueue<Item> out,
+                               PipelineMetrics.QueueDepth outDepth, AtomicInteger running, boolean last,
+                               AtomicBoolean failed) throws Exception {
+    while (true) {
+      Item item = take(in, failed);
+      if (item == null) {
+        return;
+      }
+      if (item == END) {
+        // Leave it for the other threads of the stage; the last one passes it on
+        put(in, END, null, failed);
+        if (running.decrementAndGet() == 0 && !last) {
+          put(out, END, null, failed);
+        }
+        return;
+      }
+
+      engine.process(item.cas);
+      if (last) {
+        item.cas.reset();
+      }
+      put(out, item, outDepth, failed);
+    }
+  }
+
+  /**
+   * @return the next item, or null once another thread failed.
+   */
+  private static Item take(BlockingQueue<Item> queue, AtomicBoolean failed) throws InterruptedException {
+    Item item;
+    do {
+      item = queue.poll(FAILURE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    } while (item == null && !failed.get());
+    return item;
+  }
+
+  /**
+   * Puts the item, unless another thread failed in the meantime, and records the depth if given.
+   */
+  private static void put(BlockingQueue<Item> queue, Item item, PipelineMetrics.QueueDepth depth,
+                          AtomicBoolean failed) throws InterruptedException {
+    if (!queue.offer(item)) {
+      if (depth != null) {
+        depth.full();
+      }
+      while (!queue.offer(item, FAILURE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+        if (failed.get()) {
+          return;
+        }
+      }
+    }
+    if (depth != null) {
+      depth.added();
+    }
+  }
+
+  /**
+   * @return the engines of the stages in order, as one chain.
+   */
+  public static AnalysisEngineDescription[] engines(List<Stage> stages) {
+    List<AnalysisEngineDescription> chain = new ArrayList<>();
+    for (Stage stage : stages) {
+      chain.addAll(asList(stage.engines));
+    }
+    return chain.toArray(new AnalysisEngineDescription[chain.size()]);
+  }
+
+  /**
+   * Engines that run one after the other on each of the threads of the stage.
+   */
+  public static final class Stage {
+
+    private final String name;
+
+    private final int threads;
+
+    private final AnalysisEngineDescription[] engines;
+
+    public Stage(String name, int threads, AnalysisEngineDescription... engines) {
+      if (threads < 1) {
+        throw new IllegalArgumentException("Stage [" + name + "] needs a positive number of threads, got " + threads);
+      }
+      if (engines.length == 0) {
+        throw new IllegalArgumentException("Stage [" + name + "] has no engines");
+      }
+      this.name = name;
+      this.threads = threads;
+      this.engines = engines;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getThreads() {
+      return threads;
+    }
+
+    public AnalysisEngineDescription[] getEngines() {
+      return engines.clone();
+    }
+
+    /**
+     * @return this stage with other engines, such as instrumented ones.
+     */
+    public Stage withEngines(AnalysisEngineDescription... otherEngines) {
+      return new Stage(name, threads, otherEngines);
+    }
+
+    @Override
+    public String toString() {
+      return name + " (" + threads + " threads)";
+    }
+  }
+
+  private static final class Item {
+
+    private final CAS cas;
+
+    private Item(CAS cas) {
+      this.cas = cas;
+    }
+  }
+}
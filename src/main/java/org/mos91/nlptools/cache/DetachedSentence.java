@@ -0,0 +1,292 @@
+package org.mos91.nlptools.cache;
+
+import org.apache.uima.cas.ArrayFS;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.StringArrayFS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Annotations of one sentence, such as those that engines added to it, detached from the CAS: offsets
+ * relative to the sentence, references to its tokens and to each other by index. Supports primitive
+ * and string features, references to tokens and detached annotations, and arrays of these; a sentence
+ * with anything else cannot be detached.
+ *
+ * Instances are immutable and may be applied to sentences of any CAS of the same type system.
+ */
+public final class DetachedSentence {
+
+  private static final Object NOT_DETACHABLE = new Object();
+
+  private final Added[] annotations;
+
+  private final TokenUpdate[] tokenUpdates;
+
+  private DetachedSentence(Added[] annotations, TokenUpdate[] tokenUpdates) {
+    this.annotations = annotations;
+    this.tokenUpdates = tokenUpdates;
+  }
+
+  /**
+   * @param tokens the tokens of the sentence, which are referred to but not detached.
+   * @param added the annotations to detach, in index order, typically those created since the mark.
+   * @param mark tells which other feature structures, such as arrays, may be detached along.
+   * @return the sentence detached, or null if it cannot be.
+   */
+  public static DetachedSentence capture(AnnotationFS sentence, List<? extends AnnotationFS> tokens,
+                                         List<? extends AnnotationFS> added, HeapMark mark) {
+    Map<FeatureStructure, Integer> refs = new IdentityHashMap<>();
+    for (int t = 0; t < tokens.size(); t++) {
+      refs.put(tokens.get(t), t);
+    }
+    for (int a = 0; a < added.size(); a++) {
+      refs.put(added.get(a), -a - 1);
+    }
+
+    int sentenceBegin = sentence.getBegin();
+    Added[] annotations = new Added[added.size()];
+    for (int a = 0; a < annotations.length; a++) {
+      AnnotationFS annotation = added.get(a);
+      List<Feature> features = ownFeatures(annotation.getType());
+      String[] names = new String[features.size()];
+      Object[] values = new Object[features.size()];
+      for (int f = 0; f < names.length; f++) {
+        names[f] = features.get(f).getShortName();
+        values[f] = encode(annotation, features.get(f), refs, mark);
+        if (values[f] == NOT_DETACHABLE) {
+          return null;
+        }
+      }
+      annotations[a] = new Added(annotation.getType().getName(), annotation.getBegin() - sentenceBegin,
+        annotation.getEnd() - sentenceBegin, names, values);
+    }
+
+    // Taggers and lemmatizers also link their annotations from the tokens
+    List<TokenUpdate> tokenUpdates = new ArrayList<>();
+    for (int t = 0; t < tokens.size(); t++) {
+      AnnotationFS token = tokens.get(t);
+      for (Feature feature : ownFeatures(token.getType())) {
+        if (feature.getRange().isPrimitive()) {
+          continue;
+        }
+        FeatureStructure value = token.getFeatureValue(feature);
+        if (value != null && mark.isNew(value)) {
+          Object encoded = encode(token, feature, refs, mark);
+          if (encoded == NOT_DETACHABLE) {
+            return null;
+          }
+          tokenUpdates.add(new TokenUpdate(t, feature.getShortName(), encoded));
+        }
+      }
+    }
+    return new DetachedSentence(annotations, tokenUpdates.toArray(new TokenUpdate[tokenUpdates.size()]));
+  }
+
+  /**
+   * Recreates the annotations, and adds them to the indexes, on a sentence that begins at the given
+   * offset and has the same tokens as the captured one.
+   */
+  public void apply(CAS cas, int sentenceBegin, List<? extends AnnotationFS> tokens) {
+    TypeSystem typeSystem = cas.getTypeSystem();
+
+    AnnotationFS[] created = new AnnotationFS[annotations.length];
+    for (int a = 0; a < created.length; a++) {
+      Added added = annotations[a];
+      created[a] = cas.createAnnotation(typeSystem.getType(added.type), sentenceBegin + added.begin,
+        sentenceBegin + added.end);
+    }
+    // Features only once all exist, as annotations may refer to each other in both directions
+    for (int a = 0; a < created.length; a++) {
+      Added added = annotations[a];
+      Type type = created[a].getType();
+      for (int f = 0; f < added.features.length; f++) {
+        set(cas, created[a], type.getFeatureByBaseName(added.features[f]), added.values[f], tokens, created);
+      }
+    }
+    for (AnnotationFS annotation : created) {
+      cas.addFsToIndexes(annotation);
+    }
+
+    for (TokenUpdate update : tokenUpdates) {
+      AnnotationFS token = tokens.get(update.token);
+      set(cas, token, token.getType().getFeatureByBaseName(update.feature), update.value, tokens, created);
+    }
+  }
+
+  private static Object encode(FeatureStructure fs, Feature feature, Map<FeatureStructure, Integer> refs,
+                               HeapMark mark) {
+    Type range = feature.getRange();
+    if (range.isPrimitive()) {
+      switch (range.getName()) {
+        case CAS.TYPE_NAME_INTEGER:
+          return fs.getIntValue(feature);
+        case CAS.TYPE_NAME_FLOAT:
+          return fs.getFloatValue(feature);
+        case CAS.TYPE_NAME_BOOLEAN:
+          return fs.getBooleanValue(feature);
+        case CAS.TYPE_NAME_BYTE:
+          return fs.getByteValue(feature);
+        case CAS.TYPE_NAME_SHORT:
+          return fs.getShortValue(feature);
+        case CAS.TYPE_NAME_LONG:
+          return fs.getLongValue(feature);
+        case CAS.TYPE_NAME_DOUBLE:
+          return fs.getDoubleValue(feature);
+        default:
+          // string or a subtype of it
+          return fs.getStringValue(feature);
+      }
+    }
+
+    FeatureStructure value = fs.getFeatureValue(feature);
+    if (value == null) {
+      return null;
+    }
+    Integer ref = refs.get(value);
+    if (ref != null) {
+      return new Ref(ref);
+    }
+    if (!mark.isNew(value)) {
+      return NOT_DETACHABLE;
+    }
+    if (value instanceof StringArrayFS) {
+      return ((StringArrayFS) value).toArray();
+    }
+    if (value instanceof ArrayFS) {
+      ArrayFS array = (ArrayFS) value;
+      Ref[] elements = new Ref[array.size()];
+      for (int i = 0; i < elements.length; i++) {
+        FeatureStructure element = array.get(i);
+        Integer elementRef = element == null ? null : refs.get(element);
+        if (element != null && elementRef == null) {
+          return NOT_DETACHABLE;
+        }
+        elements[i] = element == null ? null : new Ref(elementRef);
+      }
+      return elements;
+    }
+    return NOT_DETACHABLE;
+  }
+
+  private static void set(CAS cas, FeatureStructure fs, Feature feature, Object value,
+                          List<? extends AnnotationFS> tokens, AnnotationFS[] created) {
+    if (feature.getRange().isPrimitive()) {
+      switch (feature.getRange().getName()) {
+        case CAS.TYPE_NAME_INTEGER:
+          fs.setIntValue(feature, (Integer) value);
+          break;
+        case CAS.TYPE_NAME_FLOAT:
+          fs.setFloatValue(feature, (Float) value);
+          break;
+        case CAS.TYPE_NAME_BOOLEAN:
+          fs.setBooleanValue(feature, (Boolean) value);
+          break;
+        case CAS.TYPE_NAME_BYTE:
+          fs.setByteValue(feature, (Byte) value);
+          break;
+        case CAS.TYPE_NAME_SHORT:
+          fs.setShortValue(feature, (Short) value);
+          break;
+        case CAS.TYPE_NAME_LONG:
+          fs.setLongValue(feature, (Long) value);
+          break;
+        case CAS.TYPE_NAME_DOUBLE:
+          fs.setDoubleValue(feature, (Double) value);
+          break;
+        default:
+          fs.setStringValue(feature, (String) value);
+      }
+    } else if (value == null) {
+      fs.setFeatureValue(feature, null);
+    } else if (value instanceof Ref) {
+      fs.setFeatureValue(feature, ((Ref) value).resolve(tokens, created));
+    } else if (value instanceof String[]) {
+      String[] strings = (String[]) value;
+      StringArrayFS array = cas.createStringArrayFS(strings.length);
+      array.copyFromArray(strings, 0, 0, strings.length);
+      fs.setFeatureValue(feature, array);
+    } else {
+      Ref[] elements = (Ref[]) value;
+      ArrayFS array = cas.createArrayFS(elements.length);
+      for (int i = 0; i < elements.length; i++) {
+        array.set(i, elements[i] == null ? null : elements[i].resolve(tokens, created));
+      }
+      fs.setFeatureValue(feature, array);
+    }
+  }
+
+  /**
+   * @return the features of the type besides sofa, begin and end.
+   */
+  private static List<Feature> ownFeatures(Type type) {
+    List<Feature> features = new ArrayList<>();
+    for (Feature feature : type.getFeatures()) {
+      String name = feature.getShortName();
+      if (!CAS.FEATURE_BASE_NAME_SOFA.equals(name) && !CAS.FEATURE_BASE_NAME_BEGIN.equals(name)
+        && !CAS.FEATURE_BASE_NAME_END.equals(name)) {
+        features.add(feature);
+      }
+    }
+    return features;
+  }
+
+  private static final class Added {
+
+    private final String type;
+
+    private final int begin;
+
+    private final int end;
+
+    private final String[] features;
+
+    private final Object[] values;
+
+    private Added(String type, int begin, int end, String[] features, Object[] values) {
+      this.type = type;
+      this.begin = begin;
+      this.end = end;
+      this.features = features;
+      this.values = values;
+    }
+  }
+
+  private static final class TokenUpdate {
+
+    private final int token;
+
+    private final String feature;
+
+    private final Object value;
+
+    private TokenUpdate(int token, String feature, Object value) {
+      this.token = token;
+      this.feature = feature;
+      this.value = value;
+    }
+  }
+
+  /**
+   * A token of the sentence by its index if at least 0, otherwise the added annotation {@code -index - 1}.
+   */
+  private static final class Ref {
+
+    private final int index;
+
+    private Ref(int index) {
+      this.index = index;
+    }
+
+    private FeatureStructure resolve(List<? extends AnnotationFS> tokens, AnnotationFS[] created) {
+      return index >= 0 ? tokens.get(index) : created[-index - 1];
+    }
+  }
+}
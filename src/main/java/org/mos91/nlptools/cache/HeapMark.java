@@ -0,0 +1,41 @@
+package org.mos91.nlptools.cache;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.cas.impl.LowLevelCAS;
+
+/**
+ * Tells the feature structures created after the mark. Stands in for {@link CAS#createMarker()}, which
+ * annotators cannot use, and relies on the heap of a CAS only growing until it is reset.
+ */
+public final class HeapMark {
+
+  private final LowLevelCAS cas;
+
+  private final int mark;
+
+  private HeapMark(LowLevelCAS cas, int mark) {
+    this.cas = cas;
+    this.mark = mark;
+  }
+
+  /**
+   * @return a mark after all feature structures created so far.
+   */
+  public static HeapMark now(CAS cas) {
+    LowLevelCAS lowLevel = cas.getLowLevelCAS();
+    return new HeapMark(lowLevel, ((CASImpl) lowLevel).getHeap().getNextId());
+  }
+
+  /**
+   * @return a mark before all feature structures, to which all of them are new.
+   */
+  public static HeapMark start(CAS cas) {
+    return new HeapMark(cas.getLowLevelCAS(), 0);
+  }
+
+  public boolean isNew(FeatureStructure fs) {
+    return cas.ll_getFSRef(fs) >= mark;
+  }
+}
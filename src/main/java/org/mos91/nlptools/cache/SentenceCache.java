@@ -0,0 +1,142 @@
+package org.mos91.nlptools.cache;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
+
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.resource.ResourceInitializationException;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Least recently used cache of the annotations that sentence-local engines, such as taggers,
+ * lemmatizers and parsers, add to a sentence. Sentences are keyed by language and their tokens, so a
+ * sentence that repeats, like boilerplate in web and news corpora, is annotated once. Put the engines
+ * between the two stages of {@link #wrap} to use it. The engines must depend on nothing of a sentence
+ * but its tokens; wrap a parser together with the tagger that it reads the tags of.
+ *
+ * Caches are JVM-wide by name, so that the workers of a parallel pipeline share one.
+ */
+public final class SentenceCache {
+
+  public static final String DEFAULT_NAME = "default";
+
+  private static final Map<String, SentenceCache> CACHES = new HashMap<>();
+
+  private final String name;
+
+  private final int maxEntries;
+
+  private final LinkedHashMap<String, DetachedSentence> entries;
+
+  private long hits;
+
+  private long misses;
+
+  private long uncacheable;
+
+  private long evictions;
+
+  private SentenceCache(String name, int maxEntries) {
+    this.name = name;
+    this.maxEntries = maxEntries;
+    entries = new LinkedHashMap<String, DetachedSentence>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, DetachedSentence> eldest) {
+        if (size() > SentenceCache.this.maxEntries) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return the cache of that name, created with the given capacity on first use.
+   */
+  public static synchronized SentenceCache get(String name, int maxEntries) {
+    return CACHES.computeIfAbsent(name, n -> new SentenceCache(n, maxEntries));
+  }
+
+  /**
+   * @return the engines between a stage that takes cached sentences out of their view and one that
+   *         restores them with their cached annotations and caches the others.
+   */
+  public static AnalysisEngineDescription[] wrap(String name, int maxEntries, AnalysisEngineDescription... engines)
+    throws ResourceInitializationException {
+    AnalysisEngineDescription[] chain = new AnalysisEngineDescription[engines.length + 2];
+    chain[0] = createEngineDescription(SentenceCacheStage.class,
+      SentenceCacheStage.PARAM_CACHE_NAME, name,
+      SentenceCacheStage.PARAM_MAX_ENTRIES, maxEntries);
+    System.arraycopy(engines, 0, chain, 1, engines.length);
+    chain[engines.length + 1] = createEngineDescription(SentenceCacheStage.class,
+      SentenceCacheStage.PARAM_CACHE_NAME, name,
+      SentenceCacheStage.PARAM_MAX_ENTRIES, maxEntries,
+      SentenceCacheStage.PARAM_STORE, true);
+    return chain;
+  }
+
+  synchronized DetachedSentence lookup(String key) {
+    DetachedSentence entry = entries.get(key);
+    if (entry != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return entry;
+  }
+
+  synchronized void put(String key, DetachedSentence entry) {
+    if (entry == null) {
+      uncacheable++;
+    } else {
+      entries.put(key, entry);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return sentences that missed and could not be cached, as the engines added unsupported features.
+   */
+  public synchronized long getUncacheable() {
+    return uncacheable;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    hits = 0;
+    misses = 0;
+    uncacheable = 0;
+    evictions = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    long lookups = hits + misses;
+    return String.format(Locale.ROOT, "Sentence cache [%s]: %d hits (%.1f%%), %d misses, %d uncacheable, "
+        + "%d evictions, %d of %d entries", name, hits, lookups == 0 ? 0.0 : 100.0 * hits / lookups, misses,
+      uncacheable, evictions, entries.size(), maxEntries);
+  }
+}
@@ -0,0 +1,210 @@
+package org.mos91.nlptools.cache;
+
+import static org.apache.uima.fit.util.JCasUtil.select;
+import static org.apache.uima.fit.util.JCasUtil.selectCovered;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import org.apache.uima.UimaContext;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.component.JCasAnnotator_ImplBase;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.Level;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One of the two stages that {@link SentenceCache#wrap} puts around sentence-local engines.
+ *
+ * The first stage looks every sentence up by its tokens and removes the sentences that hit from the
+ * index, so that the engines only see the others; a {@link HeapMark} tells what the engines add. The
+ * second stage caches the annotations added within every sentence that missed, then restores the
+ * sentences that hit and recreates their cached annotations. The engines must only annotate within
+ * the sentences they see, which is checked.
+ *
+ * Both stages must run on the same thread, as the engines of a chain do.
+ */
+public class SentenceCacheStage extends JCasAnnotator_ImplBase {
+
+  public static final String PARAM_CACHE_NAME = "cacheName";
+  @ConfigurationParameter(name = PARAM_CACHE_NAME, mandatory = true, defaultValue = SentenceCache.DEFAULT_NAME)
+  private String cacheName;
+
+  /**
+   * Capacity of the cache in sentences, applied by the stage that creates it.
+   */
+  public static final String PARAM_MAX_ENTRIES = "maxEntries";
+  @ConfigurationParameter(name = PARAM_MAX_ENTRIES, mandatory = true, defaultValue = "100000")
+  private int maxEntries;
+
+  /**
+   * Whether this is the stage after the engines.
+   */
+  public static final String PARAM_STORE = "store";
+  @ConfigurationParameter(name = PARAM_STORE, mandatory = true, defaultValue = "false")
+  private boolean store;
+
+  /**
+   * Sentences of the current document of the thread, between the two stages.
+   */
+  private static final ThreadLocal<Pending> PENDING = new ThreadLocal<>();
+
+  private SentenceCache cache;
+
+  @Override
+  public void initialize(UimaContext context) throws ResourceInitializationException {
+    super.initialize(context);
+
+    cache = SentenceCache.get(cacheName, maxEntries);
+  }
+
+  @Override
+  public void process(JCas aJCas) throws AnalysisEngineProcessException {
+    if (store) {
+      Pending pending = PENDING.get();
+      PENDING.remove();
+      if (pending == null || pending.cas != aJCas.getCas()) {
+        throw new AnalysisEngineProcessException(new IllegalStateException(
+          "No sentence cache lookup before the engines on this thread"));
+      }
+      store(aJCas.getCas(), pending);
+    } else {
+      PENDING.set(lookup(aJCas));
+    }
+  }
+
+  private Pending lookup(JCas aJCas) {
+    String language = aJCas.getDocumentLanguage();
+    Pending pending = new Pending(aJCas.getCas());
+    for (Sentence sentence : select(aJCas, Sentence.class)) {
+      List<Token> tokens = selectCovered(Token.class, sentence);
+      String key = key(language, sentence, tokens);
+      pending.sentences.add(new PendingSentence(sentence, tokens, key, cache.lookup(key)));
+    }
+
+    for (PendingSentence sentence : pending.sentences) {
+      if (sentence.cached != null) {
+        sentence.sentence.removeFromIndexes();
+      }
+    }
+    pending.mark = HeapMark.now(pending.cas);
+    return pending;
+  }
+
+  private void store(CAS cas, Pending pending) throws AnalysisEngineProcessException {
+    List<PendingSentence> sentences = pending.sentences;
+    for (AnnotationFS annotation : cas.getAnnotationIndex()) {
+      if (!pending.mark.isNew(annotation)) {
+        continue;
+      }
+      PendingSentence sentence = covering(sentences, annotation);
+      if (sentence == null) {
+        continue;
+      }
+      if (sentence.cached != null) {
+        throw new AnalysisEngineProcessException(new IllegalStateException("Engine added ["
+          + annotation.getType().getName() + "] to a sentence it was not given; only sentence-local engines "
+          + "can be cached"));
+      }
+      sentence.added.add(annotation);
+    }
+
+    for (PendingSentence sentence : sentences) {
+      if (sentence.cached == null) {
+        cache.put(sentence.key,
+          DetachedSentence.capture(sentence.sentence, sentence.tokens, sentence.added, pending.mark));
+      }
+    }
+    for (PendingSentence sentence : sentences) {
+      if (sentence.cached != null) {
+        sentence.sentence.addToIndexes();
+        sentence.cached.apply(cas, sentence.sentence.getBegin(), sentence.tokens);
+      }
+    }
+  }
+
+  @Override
+  public void collectionProcessComplete() throws AnalysisEngineProcessException {
+    if (store) {
+      getContext().getLogger().log(Level.INFO, cache.toString());
+    }
+    super.collectionProcessComplete();
+  }
+
+  /**
+   * @return the sentence that the annotation lies within, or null.
+   */
+  private static PendingSentence covering(List<PendingSentence> sentences, AnnotationFS annotation) {
+    int low = 0;
+    int high = sentences.size() - 1;
+    // Last sentence that begins at or before the annotation
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (sentences.get(mid).sentence.getBegin() <= annotation.getBegin()) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    if (high < 0) {
+      return null;
+    }
+    PendingSentence sentence = sentences.get(high);
+    return annotation.getEnd() <= sentence.sentence.getEnd() ? sentence : null;
+  }
+
+  /**
+   * @return the language and the tokens with their offsets in the sentence, which is all that
+   *         sentence-local engines see of it.
+   */
+  static String key(String language, AnnotationFS sentence, List<? extends AnnotationFS> tokens) {
+    StringBuilder key = new StringBuilder(sentence.getEnd() - sentence.getBegin() + 8 * tokens.size() + 8);
+    key.append(language).append('\u0000');
+    for (AnnotationFS token : tokens) {
+      key.append(token.getBegin() - sentence.getBegin()).append('\u0001').append(token.getCoveredText())
+        .append('\u0000');
+    }
+    return key.toString();
+  }
+
+  private static final class Pending {
+
+    private final CAS cas;
+
+    private final List<PendingSentence> sentences = new ArrayList<>();
+
+    private HeapMark mark;
+
+    private Pending(CAS cas) {
+      this.cas = cas;
+    }
+  }
+
+  private static final class PendingSentence {
+
+    private final Sentence sentence;
+
+    private final List<Token> tokens;
+
+    private final String key;
+
+    /**
+     * The cached annotations on a hit, null on a miss.
+     */
+    private final DetachedSentence cached;
+
+    private final List<AnnotationFS> added = new ArrayList<>();
+
+    private PendingSentence(Sentence sentence, List<Token> tokens, String key, DetachedSentence cached) {
+      this.sentence = sentence;
+      this.tokens = tokens;
+      this.key = key;
+      this.cached = cached;
+    }
+  }
+}
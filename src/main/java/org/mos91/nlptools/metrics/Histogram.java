@@ -0,0 +1,163 @@
+package org.mos91.nlptools.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative long values, such as nanoseconds or bytes.
+ *
+ * Values below 8 are counted exactly; above, every power of two is split into 8 buckets, so that a
+ * quantile is off by at most 12.5%. All buckets are preallocated, recording does not allocate.
+ */
+public final class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private static final int BUCKET_COUNT = bucket(Long.MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+  private final LongAdder total = new LongAdder();
+
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    if (value < 0) {
+      return;
+    }
+    counts.incrementAndGet(bucket(value));
+    total.add(value);
+    for (long m = max.get(); value > m && !max.compareAndSet(m, value); m = max.get()) {
+      // retry
+    }
+  }
+
+  /**
+   * @return a consistent enough view for reporting; recording may go on concurrently.
+   */
+  public Snapshot snapshot() {
+    long[] buckets = new long[BUCKET_COUNT];
+    long n = 0;
+    for (int b = 0; b < BUCKET_COUNT; b++) {
+      buckets[b] = counts.get(b);
+      n += buckets[b];
+    }
+    long maxValue = max.get();
+    return new Snapshot(n, total.sum(), maxValue, quantile(buckets, n, 0.5, maxValue),
+      quantile(buckets, n, 0.9, maxValue), quantile(buckets, n, 0.99, maxValue));
+  }
+
+  void reset() {
+    for (int b = 0; b < BUCKET_COUNT; b++) {
+      counts.set(b, 0);
+    }
+    total.reset();
+    max.set(0);
+  }
+
+  private static long quantile(long[] buckets, long n, double q, long maxValue) {
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(q * n);
+    long seen = 0;
+    for (int b = 0; b < buckets.length; b++) {
+      seen += buckets[b];
+      if (seen >= rank) {
+        return Math.min(upperBound(b), maxValue);
+      }
+    }
+    return maxValue;
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * @return largest value of the bucket.
+   */
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    long next = (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS);
+    return next < 0 ? Long.MAX_VALUE : next - 1;
+  }
+
+  /**
+   * Histogram figures at some point in time; quantiles are bucket bounds.
+   */
+  public static final class Snapshot {
+
+    private final long count;
+
+    private final long total;
+
+    private final long max;
+
+    private final long p50;
+
+    private final long p90;
+
+    private final long p99;
+
+    private Snapshot(long count, long total, long max, long p50, long p90, long p99) {
+      this.count = count;
+      this.total = total;
+      this.max = max;
+      this.p50 = p50;
+      this.p90 = p90;
+      this.p99 = p99;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getTotal() {
+      return total;
+    }
+
+    public long getMean() {
+      return count == 0 ? 0 : total / count;
+    }
+
+    public long getMax() {
+      return max;
+    }
+
+    public long getP50() {
+      return p50;
+    }
+
+    public long getP90() {
+      return p90;
+    }
+
+    public long getP99() {
+      return p99;
+    }
+
+    void appendJson(StringBuilder json) {
+      json.append("{\"count\":").append(count)
+        .append(",\"total\":").append(total)
+        .append(",\"mean\":").append(getMean())
+        .append(",\"p50\":").append(p50)
+        .append(",\"p90\":").append(p90)
+        .append(",\"p99\":").append(p99)
+        .append(",\"max\":").append(max)
+        .append('}');
+    }
+  }
+}
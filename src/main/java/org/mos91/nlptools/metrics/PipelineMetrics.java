@@ -0,0 +1,380 @@
+package org.mos91.nlptools.metrics;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.util.Level;
+import org.apache.uima.util.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * JVM-wide figures of the engine chain: wall and CPU time per stage as recorded by {@link StageProbe},
+ * documents and tokens per second, the CAS heap size as estimated by UIMA from the allocated heap, and
+ * bytes written by {@link org.mos91.nlptools.writer.ConllUniWriter}, and the fill levels of the queues
+ * of a {@link org.mos91.nlptools.StagedPipeline}. A document is a CAS, so in batching
+ * front ends it may hold several texts.
+ *
+ * Times are in nanoseconds. Throughput is measured from the start of the first document to the end of
+ * the last one. The figures can be read over JMX after {@link #register()}, logged periodically with
+ * {@link #startReporting(long)}, or taken as JSON.
+ */
+public final class PipelineMetrics implements PipelineMetricsMXBean {
+
+  public static final String OBJECT_NAME = "org.mos91.nlptools:type=PipelineMetrics";
+
+  private static final Logger LOG = UIMAFramework.getLogger(PipelineMetrics.class);
+
+  private static final PipelineMetrics INSTANCE = new PipelineMetrics();
+
+  private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+  private final Map<String, QueueDepth> queues = new LinkedHashMap<>();
+
+  private final LongAdder documents = new LongAdder();
+
+  private final LongAdder tokens = new LongAdder();
+
+  private final LongAdder bytesOut = new LongAdder();
+
+  private final Histogram casHeapBytes = new Histogram();
+
+  /**
+   * Start of the first and end of the last document, in {@link System#nanoTime()}; 0 before the first.
+   */
+  private final AtomicLong firstBegin = new AtomicLong();
+
+  private final AtomicLong lastEnd = new AtomicLong();
+
+  private ScheduledExecutorService reporter;
+
+  private PipelineMetrics() {
+  }
+
+  public static PipelineMetrics get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return the stage of that name, created on first use. Stages are reported in order of creation.
+   */
+  public synchronized Stage stage(String name) {
+    return stages.computeIfAbsent(name, Stage::new);
+  }
+
+  /**
+   * @return the gauge of the queue of that name, which replaces one of the same name.
+   */
+  public synchronized QueueDepth queue(String name, Collection<?> queue, int capacity) {
+    QueueDepth depth = new QueueDepth(name, queue, capacity);
+    queues.put(name, depth);
+    return depth;
+  }
+
+  void recordDocument(long beginNanos, long endNanos, int tokenCount, long casBytes) {
+    documents.increment();
+    tokens.add(tokenCount);
+    casHeapBytes.record(casBytes);
+    firstBegin.compareAndSet(0, beginNanos);
+    for (long last = lastEnd.get(); endNanos > last && !lastEnd.compareAndSet(last, endNanos); last = lastEnd.get()) {
+      // retry
+    }
+  }
+
+  public void addBytesOut(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  @Override
+  public long getDocuments() {
+    return documents.sum();
+  }
+
+  @Override
+  public long getTokens() {
+    return tokens.sum();
+  }
+
+  @Override
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  @Override
+  public double getElapsedSeconds() {
+    long first = firstBegin.get();
+    return first == 0 ? 0 : (lastEnd.get() - first) / 1e9;
+  }
+
+  @Override
+  public double getDocumentsPerSecond() {
+    return perSecond(getDocuments());
+  }
+
+  @Override
+  public double getTokensPerSecond() {
+    return perSecond(getTokens());
+  }
+
+  @Override
+  public Histogram.Snapshot getCasHeapBytes() {
+    return casHeapBytes.snapshot();
+  }
+
+  @Override
+  public synchronized List<Stage> getStages() {
+    return new ArrayList<>(stages.values());
+  }
+
+  @Override
+  public synchronized List<QueueDepth> getQueues() {
+    return new ArrayList<>(queues.values());
+  }
+
+  @Override
+  public String getJson() {
+    StringBuilder json = new StringBuilder(1024);
+    json.append("{\"documents\":").append(getDocuments())
+      .append(",\"tokens\":").append(getTokens())
+      .append(",\"bytesOut\":").append(getBytesOut())
+      .append(",\"elapsedSeconds\":").append(format(getElapsedSeconds()))
+      .append(",\"documentsPerSecond\":").append(format(getDocumentsPerSecond()))
+      .append(",\"tokensPerSecond\":").append(format(getTokensPerSecond()))
+      .append(",\"casHeapBytes\":");
+    getCasHeapBytes().appendJson(json);
+    json.append(",\"stages\":[");
+    List<Stage> stageList = getStages();
+    for (int i = 0; i < stageList.size(); i++) {
+      Stage stage = stageList.get(i);
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("{\"name\":\"").append(escape(stage.name)).append("\",\"wallNanos\":");
+      stage.getWallNanos().appendJson(json);
+      json.append(",\"cpuNanos\":");
+      stage.getCpuNanos().appendJson(json);
+      json.append('}');
+    }
+    json.append("],\"queues\":[");
+    List<QueueDepth> queueList = getQueues();
+    for (int i = 0; i < queueList.size(); i++) {
+      QueueDepth queue = queueList.get(i);
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("{\"name\":\"").append(escape(queue.name))
+        .append("\",\"depth\":").append(queue.getDepth())
+        .append(",\"peakDepth\":").append(queue.getPeakDepth())
+        .append(",\"capacity\":").append(queue.capacity)
+        .append(",\"fullCount\":").append(queue.getFullCount())
+        .append('}');
+    }
+    return json.append("]}").toString();
+  }
+
+  /**
+   * @return one line per stage with its share of the wall time, plus a throughput line.
+   */
+  public String getSummary() {
+    StringBuilder summary = new StringBuilder();
+    summary.append(String.format(Locale.ROOT, "%d documents, %d tokens in %.1f s: %.1f documents/s, "
+        + "%.0f tokens/s, %d bytes out", getDocuments(), getTokens(), getElapsedSeconds(),
+      getDocumentsPerSecond(), getTokensPerSecond(), getBytesOut()));
+
+    List<Stage> stageList = getStages();
+    long wallTotal = 0;
+    for (Stage stage : stageList) {
+      wallTotal += stage.wall.snapshot().getTotal();
+    }
+    for (Stage stage : stageList) {
+      Histogram.Snapshot wall = stage.getWallNanos();
+      Histogram.Snapshot cpu = stage.getCpuNanos();
+      summary.append(String.format(Locale.ROOT, "%n  %-24s %5.1f%%  wall p50 %.2f ms  p99 %.2f ms  cpu p50 %.2f ms",
+        stage.name, wallTotal == 0 ? 0.0 : 100.0 * wall.getTotal() / wallTotal, wall.getP50() / 1e6,
+        wall.getP99() / 1e6, cpu.getP50() / 1e6));
+    }
+    for (QueueDepth queue : getQueues()) {
+      summary.append(String.format(Locale.ROOT, "%n  queue %-18s %3d of %d, peak %d, full %d times", queue.name,
+        queue.getDepth(), queue.capacity, queue.getPeakDepth(), queue.getFullCount()));
+    }
+    return summary.toString();
+  }
+
+  @Override
+  public synchronized void reset() {
+    stages.values().forEach(Stage::reset);
+    queues.values().forEach(QueueDepth::reset);
+    documents.reset();
+    tokens.reset();
+    bytesOut.reset();
+    casHeapBytes.reset();
+    firstBegin.set(0);
+    lastEnd.set(0);
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server, unless they already are.
+   */
+  public void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    } catch (InstanceAlreadyExistsException e) {
+      // registered before
+    } catch (JMException e) {
+      throw new IllegalStateException("Unable to register " + OBJECT_NAME, e);
+    }
+  }
+
+  /**
+   * Logs {@link #getSummary()} every {@code periodSeconds} on a daemon thread, until
+   * {@link #stopReporting()}.
+   */
+  public synchronized void startReporting(long periodSeconds) {
+    stopReporting();
+    reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, PipelineMetrics.class.getSimpleName());
+      thread.setDaemon(true);
+      return thread;
+    });
+    reporter.scheduleAtFixedRate(() -> LOG.log(Level.INFO, getSummary()), periodSeconds, periodSeconds,
+      TimeUnit.SECONDS);
+  }
+
+  public synchronized void stopReporting() {
+    if (reporter != null) {
+      reporter.shutdownNow();
+      reporter = null;
+    }
+  }
+
+  private double perSecond(long count) {
+    double seconds = getElapsedSeconds();
+    return seconds > 0 ? count / seconds : 0;
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%.3f", value);
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  /**
+   * Wall and CPU time of one engine per document. CPU time is only recorded where the JVM measures it
+   * for the current thread.
+   */
+  public static final class Stage {
+
+    private final String name;
+
+    private final Histogram wall = new Histogram();
+
+    private final Histogram cpu = new Histogram();
+
+    private Stage(String name) {
+      this.name = name;
+    }
+
+    void record(long wallNanos, long cpuNanos) {
+      wall.record(wallNanos);
+      cpu.record(cpuNanos);
+    }
+
+    private void reset() {
+      wall.reset();
+      cpu.reset();
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public Histogram.Snapshot getWallNanos() {
+      return wall.snapshot();
+    }
+
+    public Histogram.Snapshot getCpuNanos() {
+      return cpu.snapshot();
+    }
+  }
+
+  /**
+   * Fill level of a bounded queue between two stages, see
+   * {@link org.mos91.nlptools.StagedPipeline}. A queue that is often full feeds a stage that needs more
+   * threads; one that is always empty, a stage that has more than it needs.
+   */
+  public static final class QueueDepth {
+
+    private final String name;
+
+    private final Collection<?> queue;
+
+    private final int capacity;
+
+    private final AtomicInteger peakDepth = new AtomicInteger();
+
+    private final LongAdder fullCount = new LongAdder();
+
+    private QueueDepth(String name, Collection<?> queue, int capacity) {
+      this.name = name;
+      this.queue = queue;
+      this.capacity = capacity;
+    }
+
+    /**
+     * Records the depth after an item was added.
+     */
+    public void added() {
+      int depth = queue.size();
+      for (int peak = peakDepth.get(); depth > peak && !peakDepth.compareAndSet(peak, depth); peak = peakDepth.get()) {
+        // retry
+      }
+    }
+
+    /**
+     * Records that a producer found the queue full and had to wait.
+     */
+    public void full() {
+      fullCount.increment();
+    }
+
+    private void reset() {
+      peakDepth.set(0);
+      fullCount.reset();
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getDepth() {
+      return queue.size();
+    }
+
+    public int getPeakDepth() {
+      return peakDepth.get();
+    }
+
+    public int getCapacity() {
+      return capacity;
+    }
+
+    public long getFullCount() {
+      return fullCount.sum();
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package org.mos91.nlptools.metrics;
+
+import java.util.List;
+
+/**
+ * JMX view of {@link PipelineMetrics}, registered as {@value PipelineMetrics#OBJECT_NAME}.
+ */
+public interface PipelineMetricsMXBean {
+
+  long getDocuments();
+
+  long getTokens();
+
+  long getBytesOut();
+
+  double getElapsedSeconds();
+
+  double getDocumentsPerSecond();
+
+  double getTokensPerSecond();
+
+  Histogram.Snapshot getCasHeapBytes();
+
+  List<PipelineMetrics.Stage> getStages();
+
+  List<PipelineMetrics.QueueDepth> getQueues();
+
+  String getJson();
+
+  void reset();
+}
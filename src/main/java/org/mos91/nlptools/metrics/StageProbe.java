@@ -0,0 +1,140 @@
+package org.mos91.nlptools.metrics;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import org.apache.uima.UimaContext;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.fit.component.JCasAnnotator_ImplBase;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Marker placed between the engines of a chain by {@link #instrument(AnalysisEngineDescription...)}.
+ * Every probe charges the wall and CPU time since the previous probe to the stage in between, in
+ * {@link PipelineMetrics}; the last one also counts the document, its tokens and CAS heap size.
+ *
+ * The engines of a chain run one after the other on the same thread, so the time between two probes
+ * is kept per thread. A chain must hence not be split across threads.
+ */
+public class StageProbe extends JCasAnnotator_ImplBase {
+
+  /**
+   * Name of the stage that ends at this probe, empty for the probe before the first stage.
+   */
+  public static final String PARAM_COMPLETED_STAGE = "completedStage";
+  @ConfigurationParameter(name = PARAM_COMPLETED_STAGE, mandatory = true, defaultValue = "")
+  private String completedStage;
+
+  /**
+   * Whether this probe ends the chain and thereby the document.
+   */
+  public static final String PARAM_LAST = "last";
+  @ConfigurationParameter(name = PARAM_LAST, mandatory = true, defaultValue = "false")
+  private boolean last;
+
+  /**
+   * Per thread: start of the document, wall and CPU time at the previous probe.
+   */
+  private static final ThreadLocal<long[]> MARKS = ThreadLocal.withInitial(() -> new long[3]);
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  private PipelineMetrics metrics;
+
+  private PipelineMetrics.Stage stage;
+
+  private boolean measureCpu;
+
+  @Override
+  public void initialize(UimaContext context) throws ResourceInitializationException {
+    super.initialize(context);
+
+    metrics = PipelineMetrics.get();
+    stage = completedStage.isEmpty() ? null : metrics.stage(completedStage);
+    measureCpu = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+  }
+
+  @Override
+  public void process(JCas aJCas) throws AnalysisEngineProcessException {
+    long now = System.nanoTime();
+    long[] marks = MARKS.get();
+    if (stage == null) {
+      marks[0] = now;
+    } else {
+      long cpuNow = measureCpu ? THREADS.getCurrentThreadCpuTime() : -1;
+      stage.record(now - marks[1], cpuNow >= 0 && marks[2] >= 0 ? cpuNow - marks[2] : -1);
+    }
+
+    if (last) {
+      metrics.recordDocument(marks[0], now, aJCas.getAnnotationIndex(Token.type).size(),
+        aJCas.getCasImpl().size());
+    }
+
+    // Read the clocks again, so that the probe itself is not charged to the next stage
+    marks[2] = measureCpu ? THREADS.getCurrentThreadCpuTime() : -1;
+    marks[1] = System.nanoTime();
+  }
+
+  /**
+   * @return the engines with a probe before, between and after them. Stages are named after the
+   *         simple class name of their engine, numbered if it occurs more than once.
+   */
+  public static AnalysisEngineDescription[] instrument(AnalysisEngineDescription... engines)
+    throws ResourceInitializationException {
+    return instrument(Collections.singletonList(engines)).get(0);
+  }
+
+  /**
+   * Instruments a chain that is split into segments which run on different threads, such as the stages
+   * of a {@link org.mos91.nlptools.StagedPipeline}: every segment gets probes of its own, and stages are
+   * named across all segments. Only the last segment counts documents; their throughput is hence
+   * measured from the start of the last segment.
+   *
+   * @return the segments with a probe before, between and after their engines.
+   */
+  public static List<AnalysisEngineDescription[]> instrument(List<AnalysisEngineDescription[]> segments)
+    throws ResourceInitializationException {
+    List<AnalysisEngineDescription[]> instrumented = new ArrayList<>(segments.size());
+    Set<String> names = new HashSet<>();
+    for (int s = 0; s < segments.size(); s++) {
+      AnalysisEngineDescription[] engines = segments.get(s);
+      List<AnalysisEngineDescription> chain = new ArrayList<>(2 * engines.length + 1);
+      chain.add(createEngineDescription(StageProbe.class));
+
+      for (int i = 0; i < engines.length; i++) {
+        String base = stageName(engines[i]);
+        String name = base;
+        for (int n = 2; !names.add(name); n++) {
+          name = base + "#" + n;
+        }
+
+        chain.add(engines[i]);
+        chain.add(createEngineDescription(StageProbe.class,
+          PARAM_COMPLETED_STAGE, name,
+          PARAM_LAST, s == segments.size() - 1 && i == engines.length - 1));
+      }
+      instrumented.add(chain.toArray(new AnalysisEngineDescription[chain.size()]));
+    }
+    return instrumented;
+  }
+
+  private static String stageName(AnalysisEngineDescription engine) {
+    String name = engine.isPrimitive()
+      ? engine.getAnnotatorImplementationName() : engine.getAnalysisEngineMetaData().getName();
+    if (name == null || name.isEmpty()) {
+      return "stage";
+    }
+    return name.substring(name.lastIndexOf('.') + 1);
+  }
+}
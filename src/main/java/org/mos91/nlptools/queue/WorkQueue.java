@@ -0,0 +1,295 @@
+package org.mos91.nlptools.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Queue of work items, such as source documents, in a directory that several nodes share. Items are
+ * enqueued in chunks, and a chunk is leased to one worker at a time. Every state change is an atomic
+ * rename of the chunk file between the subdirectories {@code todo}, {@code leased}, {@code done} and
+ * {@code failed}, so workers need no other coordination than the file system.
+ *
+ * A lease lasts until its holder completes it, or until it has not been renewed for the lease duration,
+ * after which any worker can reclaim it; a crashed worker hence delays its chunk but does not lose it.
+ * Lease times are taken from the clock of the renewing node, so the clocks of the nodes must agree to
+ * well within the lease duration. A worker whose lease was reclaimed may still finish the chunk, so
+ * processing a chunk twice must be harmless, as rewriting the same output is.
+ */
+public final class WorkQueue {
+
+  private static final String TODO = "todo";
+
+  private static final String LEASED = "leased";
+
+  private static final String DONE = "done";
+
+  private static final String FAILED = "failed";
+
+  /**
+   * Created by the one enqueuer, before any chunk.
+   */
+  private static final String ENQUEUING = "enqueuing";
+
+  /**
+   * Created by the enqueuer after the last chunk.
+   */
+  private static final String READY = "ready";
+
+  private static final String ERROR_SUFFIX = ".error";
+
+  private static final char OWNER_SEPARATOR = '@';
+
+  private final Path directory;
+
+  private final long leaseMillis;
+
+  private final String owner;
+
+  public WorkQueue(File directory, long leaseMillis) {
+    this(directory, leaseMillis, ManagementFactory.getRuntimeMXBean().getName());
+  }
+
+  /**
+   * @param owner name of this worker, unique among the workers of the queue; defaults to pid@host.
+   */
+  public WorkQueue(File directory, long leaseMillis, String owner) {
+    if (leaseMillis <= 0) {
+      throw new IllegalArgumentException("leaseMillis must be positive, got " + leaseMillis);
+    }
+    this.directory = directory.toPath();
+    this.leaseMillis = leaseMillis;
+    this.owner = owner.replaceAll("[^A-Za-z0-9._@-]", "_");
+  }
+
+  /**
+   * Enqueues the items in chunks of the given size, unless items were enqueued before; the queue of a
+   * run can hence be created by any node, and creating it again is harmless. Delete the directory to
+   * start over.
+   *
+   * @return whether the items were enqueued.
+   */
+  public boolean enqueue(List<String> items, int chunkSize) throws IOException {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be positive, got " + chunkSize);
+    }
+    for (String subdirectory : new String[] {TODO, LEASED, DONE, FAILED}) {
+      Files.createDirectories(directory.resolve(subdirectory));
+    }
+    try {
+      Files.createFile(directory.resolve(ENQUEUING));
+    } catch (FileAlreadyExistsException e) {
+      return false;
+    }
+
+    int chunkCount = (items.size() + chunkSize - 1) / chunkSize;
+    for (int chunk = 0; chunk < chunkCount; chunk++) {
+      List<String> chunkItems = items.subList(chunk * chunkSize, Math.min(items.size(), (chunk + 1) * chunkSize));
+      String name = String.format(Locale.ROOT, "chunk-%06d", chunk);
+      Path temporary = directory.resolve(name + ".tmp");
+      Files.write(temporary, chunkItems, StandardCharsets.UTF_8);
+      Files.move(temporary, directory.resolve(TODO).resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    }
+    Files.createFile(directory.resolve(READY));
+    return true;
+  }
+
+  /**
+   * Leases a chunk that is neither leased nor done, reclaiming expired leases if there is none.
+   *
+   * @return the lease, or null if no chunk is available now; see {@link #isFinished} for whether one may
+   *         become available later.
+   */
+  public Lease claim() throws IOException {
+    if (!Files.exists(directory.resolve(READY))) {
+      return null;
+    }
+    Lease lease = claimTodo();
+    if (lease == null && reclaimExpired() > 0) {
+      lease = claimTodo();
+    }
+    return lease;
+  }
+
+  private Lease claimTodo() throws IOException {
+    List<String> chunks = list(TODO);
+    // Start at a random chunk so that workers rarely race for the same one
+    int offset = chunks.isEmpty() ? 0 : ThreadLocalRandom.current().nextInt(chunks.size());
+    for (int i = 0; i < chunks.size(); i++) {
+      String chunk = chunks.get((offset + i) % chunks.size());
+      Path leased = directory.resolve(LEASED).resolve(chunk + OWNER_SEPARATOR + owner);
+      try {
+        Files.move(directory.resolve(TODO).resolve(chunk), leased, StandardCopyOption.ATOMIC_MOVE);
+      } catch (NoSuchFileException e) {
+        // Claimed by another worker in the meantime
+        continue;
+      }
+      Files.setLastModifiedTime(leased, FileTime.fromMillis(System.currentTimeMillis()));
+      return new Lease(chunk, leased, Files.readAllLines(leased, StandardCharsets.UTF_8));
+    }
+    return null;
+  }
+
+  /**
+   * Puts back the chunks whose lease was not renewed for the lease duration.
+   *
+   * @return the number of chunks put back by this call.
+   */
+  public int reclaimExpired() throws IOException {
+    int reclaimed = 0;
+    long now = System.currentTimeMillis();
+    for (String name : list(LEASED)) {
+      Path leased = directory.resolve(LEASED).resolve(name);
+      try {
+        if (now - Files.getLastModifiedTime(leased).toMillis() <= leaseMillis) {
+          continue;
+        }
+        Files.move(leased, directory.resolve(TODO).resolve(chunkOf(name)), StandardCopyOption.ATOMIC_MOVE);
+        reclaimed++;
+      } catch (NoSuchFileException e) {
+        // Completed or reclaimed in the meantime
+      }
+    }
+    return reclaimed;
+  }
+
+  /**
+   * @return whether all items were enqueued and every chunk is done or failed.
+   */
+  public boolean isFinished() throws IOException {
+    return Files.exists(directory.resolve(READY)) && list(TODO).isEmpty() && list(LEASED).isEmpty();
+  }
+
+  /**
+   * @return the number of chunks that are to do, leased, done and failed, in this order.
+   */
+  public int[] getCounts() throws IOException {
+    return new int[] {list(TODO).size(), list(LEASED).size(), list(DONE).size(), list(FAILED).size()};
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  @Override
+  public String toString() {
+    try {
+      int[] counts = getCounts();
+      return String.format(Locale.ROOT, "Work queue [%s]: %d to do, %d leased, %d done, %d failed", directory,
+        counts[0], counts[1], counts[2], counts[3]);
+    } catch (IOException e) {
+      return "Work queue [" + directory + "]: " + e;
+    }
+  }
+
+  private List<String> list(String subdirectory) throws IOException {
+    List<String> names = new ArrayList<>();
+    Path path = directory.resolve(subdirectory);
+    if (!Files.isDirectory(path)) {
+      return names;
+    }
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+      for (Path entry : entries) {
+        String name = entry.getFileName().toString();
+        if (!name.endsWith(ERROR_SUFFIX)) {
+          names.add(name);
+        }
+      }
+    }
+    Collections.sort(names);
+    return names;
+  }
+
+  private static String chunkOf(String leasedName) {
+    int separator = leasedName.indexOf(OWNER_SEPARATOR);
+    return separator < 0 ? leasedName : leasedName.substring(0, separator);
+  }
+
+  /**
+   * A chunk leased to this worker.
+   */
+  public final class Lease {
+
+    private final String chunk;
+
+    private final Path path;
+
+    private final List<String> items;
+
+    private Lease(String chunk, Path path, List<String> items) {
+      this.chunk = chunk;
+      this.path = path;
+      this.items = Collections.unmodifiableList(items);
+    }
+
+    public String getChunk() {
+      return chunk;
+    }
+
+    public List<String> getItems() {
+      return items;
+    }
+
+    /**
+     * Extends the lease by the lease duration; call it well within that.
+     *
+     * @return false if the lease expired and was reclaimed.
+     */
+    public boolean renew() throws IOException {
+      try {
+        Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        return true;
+      } catch (NoSuchFileException e) {
+        return false;
+      }
+    }
+
+    /**
+     * Marks the chunk done.
+     *
+     * @return false if the lease expired and was reclaimed, in which case another worker processes the
+     *         chunk again.
+     */
+    public boolean complete() throws IOException {
+      return moveTo(directory.resolve(DONE).resolve(chunk));
+    }
+
+    /**
+     * Marks the chunk failed, so that it is not retried, and records the failure next to it.
+     *
+     * @return false if the lease expired and was reclaimed.
+     */
+    public boolean fail(Throwable failure) throws IOException {
+      Files.write(directory.resolve(FAILED).resolve(chunk + ERROR_SUFFIX),
+        String.valueOf(failure).getBytes(StandardCharsets.UTF_8));
+      return moveTo(directory.resolve(FAILED).resolve(chunk));
+    }
+
+    private boolean moveTo(Path target) throws IOException {
+      try {
+        Files.move(path, target, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+      } catch (NoSuchFileException e) {
+        return false;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return chunk + " (" + items.size() + " items)";
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package org.mos91.nlptools.reader;
+
+import de.tudarmstadt.ukp.dkpro.core.api.io.ResourceCollectionReaderBase;
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.UimaContext;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.collection.CollectionException;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.apache.uima.util.InvalidXMLException;
+import org.apache.uima.util.XMLInputSource;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the CASes that {@link org.mos91.nlptools.writer.CasCheckpointWriter} wrote, with all their
+ * annotations and document metadata, so that a pipeline resumes where the checkpoint was taken.
+ *
+ * The files are read leniently against the type system they were written with: types and features that
+ * the pipeline no longer has are dropped, and those it has in addition stay unset.
+ */
+public class CasCheckpointReader extends ResourceCollectionReaderBase {
+
+  /**
+   * The type system file that the writer wrote next to the checkpoints.
+   */
+  public static final String PARAM_TYPE_SYSTEM_LOCATION = "typeSystemLocation";
+  @ConfigurationParameter(name = PARAM_TYPE_SYSTEM_LOCATION, mandatory = true)
+  private String typeSystemLocation;
+
+  private TypeSystem checkpointTypeSystem;
+
+  @Override
+  public void initialize(UimaContext context) throws ResourceInitializationException {
+    super.initialize(context);
+
+    try {
+      TypeSystemDescription description = UIMAFramework.getXMLParser().parseTypeSystemDescription(
+        new XMLInputSource(typeSystemLocation));
+      checkpointTypeSystem = CasCreationUtils.createCas(description, null, null).getTypeSystem();
+    } catch (IOException | InvalidXMLException e) {
+      throw new ResourceInitializationException(e);
+    }
+  }
+
+  @Override
+  public void getNext(CAS aCAS) throws IOException, CollectionException {
+    Resource resource = nextFile();
+    try (InputStream in = new BufferedInputStream(resource.getInputStream())) {
+      Serialization.deserializeCAS(aCAS, in, checkpointTypeSystem, null);
+    } catch (ResourceInitializationException e) {
+      throw new CollectionException(e);
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package org.mos91.nlptools.reader;
+
+import org.mos91.nlptools.writer.ColumnarConllEncoder;
+import org.mos91.nlptools.writer.ConllFieldWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.apache.commons.io.IOUtils.toByteArray;
+
+/**
+ * Reads a document written by {@link org.mos91.nlptools.writer.ConllUniWriter} in binary output mode,
+ * see {@link ColumnarConllEncoder} for the format. The whole document is decoded into one int array per
+ * column; string fields are resolved through a per-column dictionary, so {@link #string(int, int)}
+ * does not allocate.
+ *
+ * Tokens are addressed by their position in the document; {@link #sentenceBegin(int)} gives the
+ * position of the first token of a sentence.
+ */
+public final class ColumnarConllReader {
+
+  private final int[] fieldColumns;
+
+  private final int sentenceCount;
+
+  private final int tokenCount;
+
+  /**
+   * First token of every sentence, plus the token count at the end.
+   */
+  private final int[] sentenceBegins;
+
+  private final int[][] columns;
+
+  private final String[][] dictionaries;
+
+  /**
+   * Text of every encoded head value up to the largest in the document, for {@link #string(int, int)}.
+   */
+  private final String[] headStrings;
+
+  /**
+   * Encoded document, only held while decoding.
+   */
+  private byte[] bytes;
+
+  private int pos;
+
+  private ColumnarConllReader(byte[] bytes) throws IOException {
+    this.bytes = bytes;
+    int magic = 0;
+    for (int i = 0; i < 4; i++) {
+      magic = magic << 8 | nextByte();
+    }
+    if (magic != ColumnarConllEncoder.MAGIC) {
+      throw new IOException("Not a columnar CoNLL document");
+    }
+    int version = nextVarint();
+    if (version != ColumnarConllEncoder.VERSION) {
+      throw new IOException("Unsupported columnar CoNLL version " + version);
+    }
+
+    int columnCount = nextVarint();
+    fieldColumns = ConllFieldWriter.newFieldSlots();
+    int[] columnFields = new int[columnCount];
+    for (int c = 0; c < columnCount; c++) {
+      columnFields[c] = nextVarint();
+      if (columnFields[c] >= ConllFieldWriter.FIELD_COUNT) {
+        throw new IOException("Unknown field id " + columnFields[c]);
+      }
+      fieldColumns[columnFields[c]] = c;
+    }
+
+    sentenceCount = nextVarint();
+    tokenCount = nextVarint();
+    sentenceBegins = new int[sentenceCount + 1];
+    for (int s = 0; s < sentenceCount; s++) {
+      sentenceBegins[s + 1] = sentenceBegins[s] + nextVarint();
+    }
+
+    columns = new int[columnCount][];
+    dictionaries = new String[columnCount][];
+    int maxHead = 0;
+    for (int c = 0; c < columnCount; c++) {
+      if (!isIntField(columnFields[c])) {
+        String[] dictionary = new String[nextVarint()];
+        for (int i = 0; i < dictionary.length; i++) {
+          int length = nextVarint();
+          if (length > bytes.length - pos) {
+            throw new IOException("Truncated columnar CoNLL document");
+          }
+          dictionary[i] = new String(bytes, pos, length, StandardCharsets.UTF_8);
+          pos += length;
+        }
+        dictionaries[c] = dictionary;
+      }
+
+      int[] column = new int[tokenCount];
+      for (int t = 0; t < tokenCount; t++) {
+        column[t] = nextVarint();
+      }
+      columns[c] = column;
+      if (dictionaries[c] == null) {
+        for (int head : column) {
+          maxHead = Math.max(maxHead, head);
+        }
+      }
+    }
+    this.bytes = null;
+
+    // heads are ids within a sentence
+    if (maxHead > tokenCount + 1) {
+      throw new IOException("Head out of range: " + (maxHead - 1));
+    }
+    headStrings = new String[maxHead + 1];
+    headStrings[0] = "_";
+    for (int head = 1; head <= maxHead; head++) {
+      headStrings[head] = Integer.toString(head - 1);
+    }
+  }
+
+  public static ColumnarConllReader read(File file) throws IOException {
+    return new ColumnarConllReader(Files.readAllBytes(file.toPath()));
+  }
+
+  /**
+   * Reads a document from the stream, e.g. a decompressed shard block. The stream is not closed.
+   */
+  public static ColumnarConllReader read(InputStream in) throws IOException {
+    return new ColumnarConllReader(toByteArray(in));
+  }
+
+  public int sentenceCount() {
+    return sentenceCount;
+  }
+
+  public int tokenCount() {
+    return tokenCount;
+  }
+
+  public int tokenCount(int sentence) {
+    return sentenceBegins[sentence + 1] - sentenceBegins[sentence];
+  }
+
+  /**
+   * @return position of the first token of the sentence.
+   */
+  public int sentenceBegin(int sentence) {
+    return sentenceBegins[sentence];
+  }
+
+  /**
+   * @return ID column of the token, 1-based within its sentence.
+   */
+  public int id(int token) {
+    int sentence = Arrays.binarySearch(sentenceBegins, token);
+    if (sentence < 0) {
+      sentence = -sentence - 2;
+    } else {
+      // skip empty sentences that begin at the same token
+      while (sentence + 1 < sentenceCount && sentenceBegins[sentence + 1] == token) {
+        sentence++;
+      }
+    }
+    return token - sentenceBegins[sentence] + 1;
+  }
+
+  public boolean has(int field) {
+    return fieldColumns[field] >= 0;
+  }
+
+  /**
+   * @return the field value as in the text output, or null for fields absent from the format.
+   */
+  public String string(int field, int token) {
+    int column = fieldColumns[field];
+    if (column < 0) {
+      return null;
+    }
+    if (dictionaries[column] == null) {
+      return headStrings[columns[column][token]];
+    }
+    return dictionaries[column][columns[column][token]];
+  }
+
+  /**
+   * @return the head of the token for {@link ConllFieldWriter#HEAD_FIELD} and
+   *         {@link ConllFieldWriter#PHEAD_FIELD}, 0 for the root and -1 for {@code _}.
+   */
+  public int intValue(int field, int token) {
+    int column = fieldColumns[field];
+    if (column < 0 || dictionaries[column] != null) {
+      throw new IllegalArgumentException("Not an integer field: " + ConllFieldWriter.fieldName(field));
+    }
+    return columns[column][token] - 1;
+  }
+
+  /**
+   * @return dictionary code of the token value, an index into {@link #dictionary(int)}.
+   */
+  public int code(int field, int token) {
+    return columns[dictionaryColumn(field)][token];
+  }
+
+  /**
+   * @return distinct values of a string field, in order of first occurrence. The array is shared.
+   */
+  public String[] dictionary(int field) {
+    return dictionaries[dictionaryColumn(field)];
+  }
+
+  /**
+   * @return raw column of the field: dictionary codes, or {@code head + 1} for head fields. The array
+   *         is shared.
+   */
+  public int[] column(int field) {
+    int column = fieldColumns[field];
+    if (column < 0) {
+      throw new IllegalArgumentException("Field not in the document: " + ConllFieldWriter.fieldName(field));
+    }
+    return columns[column];
+  }
+
+  private int dictionaryColumn(int field) {
+    int column = fieldColumns[field];
+    if (column < 0 || dictionaries[column] == null) {
+      throw new IllegalArgumentException("Not a string field: " + ConllFieldWriter.fieldName(field));
+    }
+    return column;
+  }
+
+  private static boolean isIntField(int field) {
+    return field == ConllFieldWriter.HEAD_FIELD || field == ConllFieldWriter.PHEAD_FIELD;
+  }
+
+  private int nextByte() throws IOException {
+    if (pos >= bytes.length) {
+      throw new IOException("Truncated columnar CoNLL document");
+    }
+    return bytes[pos++] & 0xff;
+  }
+
+  private int nextVarint() throws IOException {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = nextByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+      if (shift > 28) {
+        throw new IOException("Malformed varint at offset " + pos);
+      }
+    }
+  }
+}
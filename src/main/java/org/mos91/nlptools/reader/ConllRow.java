@@ -0,0 +1,251 @@
+package org.mos91.nlptools.reader;
+
+import org.mos91.nlptools.writer.ConllFieldWriter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reusable view of one token line of a {@link MappedConllReader}. Fields are addressed by
+ * {@link ConllFieldWriter} field id ({@link ConllFieldWriter#FORM_FIELD}, ...) and are read straight
+ * from the mapped file; only {@link #string(int)} and {@link #slice(int)} allocate.
+ *
+ * Position a row with {@link MappedConllReader#seek(ConllRow, int)} and advance it with {@link #next()}.
+ *
+ * This class is not thread-safe.
+ */
+public final class ConllRow {
+
+  private final int[] fieldSlots;
+
+  private final int columnCount;
+
+  private final int apredsColumn;
+
+  private final byte[] separator;
+
+  private final Charset encoding;
+
+  private ByteBuffer buffer;
+
+  /**
+   * Start of the next line, and the end of the current sentence.
+   */
+  private int next;
+
+  private int limit;
+
+  private int id;
+
+  private final int[] columnBegins;
+
+  private final int[] columnEnds;
+
+  private int[] pieceBegins = new int[16];
+
+  private int[] pieceEnds = new int[16];
+
+  ConllRow(int[] fieldSlots, byte[] separator, Charset encoding) {
+    this.fieldSlots = fieldSlots;
+    this.separator = separator;
+    this.encoding = encoding;
+    int columns = 0;
+    for (int slot : fieldSlots) {
+      columns = Math.max(columns, slot + 1);
+    }
+    columnCount = columns;
+    apredsColumn = fieldSlots[ConllFieldWriter.APREDS_FIELD];
+    columnBegins = new int[columnCount];
+    columnEnds = new int[columnCount];
+  }
+
+  void reset(ByteBuffer buffer, int begin, int end) {
+    this.buffer = buffer;
+    this.next = begin;
+    this.limit = end;
+    this.id = 0;
+  }
+
+  /**
+   * Advances to the next token of the sentence.
+   *
+   * @return false at the end of the sentence.
+   */
+  public boolean next() {
+    if (next >= limit) {
+      return false;
+    }
+
+    int begin = next;
+    int end = begin;
+    while (end < limit && buffer.get(end) != '\n') {
+      end++;
+    }
+    next = end + 1;
+    if (end > begin && buffer.get(end - 1) == '\r') {
+      end--;
+    }
+
+    int value = 0;
+    int pos = begin;
+    for (; pos < end && buffer.get(pos) != '\t'; pos++) {
+      value = value * 10 + buffer.get(pos) - '0';
+    }
+    id = value;
+    split(Math.min(pos + 1, end), end);
+
+    return true;
+  }
+
+  /**
+   * @return ID column of the current token, 1-based within its sentence.
+   */
+  public int id() {
+    return id;
+  }
+
+  public boolean has(int field) {
+    return fieldSlots[field] >= 0;
+  }
+
+  /**
+   * @return length in bytes of the field; 0 for fields absent from the format.
+   */
+  public int length(int field) {
+    int column = fieldSlots[field];
+    return column < 0 ? 0 : columnEnds[column] - columnBegins[column];
+  }
+
+  public byte byteAt(int field, int index) {
+    return buffer.get(columnBegins[fieldSlots[field]] + index);
+  }
+
+  /**
+   * @return whether the field bytes equal the given value, e.g. an encoded tag.
+   */
+  public boolean fieldEquals(int field, byte[] value) {
+    int column = fieldSlots[field];
+    if (column < 0 || columnEnds[column] - columnBegins[column] != value.length) {
+      return false;
+    }
+    for (int i = 0, pos = columnBegins[column]; i < value.length; i++, pos++) {
+      if (buffer.get(pos) != value[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the field as a non-negative decimal number, e.g. {@link ConllFieldWriter#HEAD_FIELD}; -1 if
+   *         it is absent, empty or not a number ({@code _}).
+   */
+  public int intValue(int field) {
+    int column = fieldSlots[field];
+    if (column < 0 || columnEnds[column] == columnBegins[column]) {
+      return -1;
+    }
+
+    int value = 0;
+    for (int pos = columnBegins[column]; pos < columnEnds[column]; pos++) {
+      int digit = buffer.get(pos) - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  /**
+   * Copies the field bytes into {@code target}.
+   *
+   * @return number of bytes copied.
+   */
+  public int copy(int field, byte[] target, int offset) {
+    int length = length(field);
+    int begin = length == 0 ? 0 : columnBegins[fieldSlots[field]];
+    for (int i = 0; i < length; i++) {
+      target[offset + i] = buffer.get(begin + i);
+    }
+    return length;
+  }
+
+  /**
+   * @return read-only view of the field bytes, without copying them.
+   */
+  public ByteBuffer slice(int field) {
+    ByteBuffer view = buffer.duplicate();
+    int column = fieldSlots[field];
+    if (column < 0) {
+      view.limit(0);
+    } else {
+      view.limit(columnEnds[column]);
+      view.position(columnBegins[column]);
+    }
+    return view.slice();
+  }
+
+  /**
+   * @return the decoded field, or null for fields absent from the format.
+   */
+  public String string(int field) {
+    if (fieldSlots[field] < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length(field)];
+    copy(field, bytes, 0);
+    return new String(bytes, encoding);
+  }
+
+  /**
+   * Splits {@code [begin, end)} by the field separator. The apreds field holds tab-separated values
+   * of its own, so it takes all pieces left over by the columns before and after it.
+   */
+  private void split(int begin, int end) {
+    int pieces = 0;
+    int pieceBegin = begin;
+    for (int pos = begin; pos <= end - separator.length; ) {
+      if (matchesSeparator(pos)) {
+        pieces = addPiece(pieces, pieceBegin, pos);
+        pos += separator.length;
+        pieceBegin = pos;
+      } else {
+        pos++;
+      }
+    }
+    pieces = addPiece(pieces, pieceBegin, end);
+
+    if (pieces < columnCount || pieces > columnCount && apredsColumn < 0) {
+      throw new IllegalStateException("Expected " + columnCount + " columns in line at offset " + begin
+        + ", found " + pieces);
+    }
+
+    int extra = pieces - columnCount;
+    for (int c = 0; c < columnCount; c++) {
+      int piece = apredsColumn >= 0 && c > apredsColumn ? c + extra : c;
+      columnBegins[c] = pieceBegins[piece];
+      columnEnds[c] = pieceEnds[c == apredsColumn ? piece + extra : piece];
+    }
+  }
+
+  private boolean matchesSeparator(int pos) {
+    for (int i = 0; i < separator.length; i++) {
+      if (buffer.get(pos + i) != separator[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int addPiece(int pieces, int begin, int end) {
+    if (pieces == pieceBegins.length) {
+      pieceBegins = Arrays.copyOf(pieceBegins, pieces * 2);
+      pieceEnds = Arrays.copyOf(pieceEnds, pieces * 2);
+    }
+    pieceBegins[pieces] = begin;
+    pieceEnds[pieces] = end;
+    return pieces + 1;
+  }
+}
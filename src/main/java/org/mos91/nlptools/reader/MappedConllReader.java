@@ -0,0 +1,292 @@
+package org.mos91.nlptools.reader;
+
+import org.mos91.nlptools.writer.ConllUniWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Random-access reader of the uncompressed files written by {@link ConllUniWriter}, per-document
+ * files as well as shards.
+ *
+ * The file is memory-mapped. On the first open, a sentence index (offset and token count of every
+ * sentence) is built in one sequential pass and persisted next to the file as {@code <file>.sidx};
+ * later opens load it as long as the file size and modification time still match. Header lines are
+ * skipped. Token fields are accessed through a reusable {@link ConllRow} without creating Strings.
+ *
+ * Files larger than 2 GiB are mapped as several segments, split at sentence boundaries.
+ *
+ * This class is thread-safe as long as every thread uses its own {@link ConllRow}.
+ */
+public final class MappedConllReader implements Closeable {
+
+  public static final String INDEX_SUFFIX = ".sidx";
+
+  private static final int INDEX_MAGIC = 0x434f4e4c;
+
+  private static final int INDEX_VERSION = 1;
+
+  private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+  private static final int SCAN_WINDOW_BYTES = 1 << 26;
+
+  private final FileChannel channel;
+
+  private final int[] fieldSlots;
+
+  private final byte[] separator;
+
+  private final Charset encoding;
+
+  private final int sentenceCount;
+
+  private final long[] sentenceBegins;
+
+  private final long[] sentenceEnds;
+
+  private final int[] sentenceTokens;
+
+  private final MappedByteBuffer[] segments;
+
+  private final long[] segmentBegins;
+
+  private final int[] sentenceSegments;
+
+  private MappedConllReader(File file, String rowFormat, String fieldSeparator, Charset encoding)
+    throws IOException {
+    if (fieldSeparator == null || fieldSeparator.isEmpty()) {
+      throw new IllegalArgumentException("Field separator must not be empty");
+    }
+
+    this.fieldSlots = ConllUniWriter.compileFieldSlots(rowFormat);
+    this.separator = fieldSeparator.getBytes(encoding);
+    this.encoding = encoding;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      File indexFile = new File(file.getPath() + INDEX_SUFFIX);
+      SentenceIndex index = SentenceIndex.load(indexFile, file);
+      if (index == null) {
+        index = SentenceIndex.build(channel);
+        index.persist(indexFile, file);
+      }
+      sentenceCount = index.count;
+      sentenceBegins = index.begins;
+      sentenceEnds = index.ends;
+      sentenceTokens = index.tokens;
+
+      // Map consecutive sentences into segments of at most 2 GiB
+      sentenceSegments = new int[sentenceCount];
+      long[] begins = new long[4];
+      long[] ends = new long[4];
+      int segmentCount = 0;
+      for (int s = 0; s < sentenceCount; s++) {
+        if (sentenceEnds[s] - sentenceBegins[s] > MAX_SEGMENT_BYTES) {
+          throw new IOException("Sentence at offset " + sentenceBegins[s] + " is larger than 2 GiB");
+        }
+        if (segmentCount == 0 || sentenceEnds[s] - begins[segmentCount - 1] > MAX_SEGMENT_BYTES) {
+          if (segmentCount == begins.length) {
+            begins = Arrays.copyOf(begins, segmentCount * 2);
+            ends = Arrays.copyOf(ends, segmentCount * 2);
+          }
+          begins[segmentCount++] = sentenceBegins[s];
+        }
+        ends[segmentCount - 1] = sentenceEnds[s];
+        sentenceSegments[s] = segmentCount - 1;
+      }
+
+      segments = new MappedByteBuffer[segmentCount];
+      segmentBegins = Arrays.copyOf(begins, segmentCount);
+      for (int i = 0; i < segmentCount; i++) {
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, begins[i], ends[i] - begins[i]);
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a file written with the given {@code rowFormat} and {@code fieldSeparator} in UTF-8.
+   */
+  public static MappedConllReader open(File file, String rowFormat, String fieldSeparator) throws IOException {
+    return open(file, rowFormat, fieldSeparator, StandardCharsets.UTF_8);
+  }
+
+  public static MappedConllReader open(File file, String rowFormat, String fieldSeparator, Charset encoding)
+    throws IOException {
+    return new MappedConllReader(file, rowFormat, fieldSeparator, encoding);
+  }
+
+  public int sentenceCount() {
+    return sentenceCount;
+  }
+
+  public int tokenCount(int sentence) {
+    return sentenceTokens[sentence];
+  }
+
+  /**
+   * @return a new row for this reader, to be positioned with {@link #seek}.
+   */
+  public ConllRow newRow() {
+    return new ConllRow(fieldSlots, separator, encoding);
+  }
+
+  /**
+   * Positions the row before the first token of the sentence; call {@link ConllRow#next()} to read it.
+   */
+  public void seek(ConllRow row, int sentence) {
+    int segment = sentenceSegments[sentence];
+    long base = segmentBegins[segment];
+    row.reset(segments[segment], (int) (sentenceBegins[sentence] - base), (int) (sentenceEnds[sentence] - base));
+  }
+
+  /**
+   * Positions the row on the given token (0-based) of the sentence.
+   */
+  public void seek(ConllRow row, int sentence, int token) {
+    if (token < 0 || token >= sentenceTokens[sentence]) {
+      throw new IndexOutOfBoundsException("Token " + token + " of sentence " + sentence);
+    }
+    seek(row, sentence);
+    for (int i = 0; i <= token; i++) {
+      row.next();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Sentence offsets: a sentence spans its token lines, without header and trailing blank line.
+   */
+  private static final class SentenceIndex {
+
+    private int count;
+
+    private long[] begins = new long[1024];
+
+    private long[] ends = new long[1024];
+
+    private int[] tokens = new int[1024];
+
+    static SentenceIndex build(FileChannel channel) throws IOException {
+      SentenceIndex index = new SentenceIndex();
+      long size = channel.size();
+      long lineBegin = 0;
+      boolean inSentence = false;
+      int lineKind = 0;
+
+      for (long windowBegin = 0; windowBegin < size; windowBegin += SCAN_WINDOW_BYTES) {
+        int windowSize = (int) Math.min(SCAN_WINDOW_BYTES, size - windowBegin);
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowBegin, windowSize);
+        for (int i = 0; i < windowSize; i++) {
+          byte b = window.get(i);
+          long pos = windowBegin + i;
+          if (pos == lineBegin) {
+            lineKind = b;
+          }
+          if (b == '\n') {
+            inSentence = index.endLine(lineKind, lineBegin, pos, inSentence);
+            lineBegin = pos + 1;
+          }
+        }
+      }
+      if (lineBegin < size) {
+        // last line without line break
+        index.endLine(lineKind, lineBegin, size - 1, inSentence);
+      }
+
+      return index;
+    }
+
+    /**
+     * Records the line {@code [begin, lineBreak]}. Token lines start with their ID; any other line, blank
+     * or header, ends the current sentence.
+     *
+     * @return whether a sentence is open after this line.
+     */
+    private boolean endLine(int firstByte, long begin, long lineBreak, boolean inSentence) {
+      if (lineBreak == begin || firstByte < '0' || firstByte > '9') {
+        return false;
+      }
+      if (!inSentence) {
+        add(begin);
+      }
+      tokens[count - 1]++;
+      ends[count - 1] = lineBreak + 1;
+      return true;
+    }
+
+    private void add(long begin) {
+      if (count == begins.length) {
+        begins = Arrays.copyOf(begins, count * 2);
+        ends = Arrays.copyOf(ends, count * 2);
+        tokens = Arrays.copyOf(tokens, count * 2);
+      }
+      begins[count] = begin;
+      tokens[count] = 0;
+      count++;
+    }
+
+    static SentenceIndex load(File indexFile, File file) throws IOException {
+      if (!indexFile.isFile()) {
+        return null;
+      }
+
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+        if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+          || in.readLong() != file.length() || in.readLong() != file.lastModified()) {
+          return null;
+        }
+
+        SentenceIndex index = new SentenceIndex();
+        index.count = in.readInt();
+        index.begins = new long[index.count];
+        index.ends = new long[index.count];
+        index.tokens = new int[index.count];
+        for (int s = 0; s < index.count; s++) {
+          index.begins[s] = in.readLong();
+          index.ends[s] = in.readLong();
+          index.tokens[s] = in.readInt();
+        }
+        return index;
+      }
+    }
+
+    /**
+     * Persists the index; a target directory that is not writable only costs a rebuild on the next open.
+     */
+    void persist(File indexFile, File file) {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_VERSION);
+        out.writeLong(file.length());
+        out.writeLong(file.lastModified());
+        out.writeInt(count);
+        for (int s = 0; s < count; s++) {
+          out.writeLong(begins[s]);
+          out.writeLong(ends[s]);
+          out.writeInt(tokens[s]);
+        }
+      } catch (IOException e) {
+        indexFile.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,474 @@
+package org.mos91.nlptools.reader;
+
+import de.tudarmstadt.ukp.dkpro.core.api.io.ResourceCollectionReaderBase;
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
+import de.tudarmstadt.ukp.dkpro.core.api.parameter.ComponentParameters;
+import org.apache.uima.UimaContext;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.CASException;
+import org.apache.uima.collection.CollectionException;
+import org.apache.uima.fit.component.CasCollectionReader_ImplBase;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.fit.descriptor.TypeCapability;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.Progress;
+import org.apache.uima.util.ProgressImpl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * Plain text reader for large corpora. Instead of listing the whole source location before the first
+ * document, as {@link de.tudarmstadt.ukp.dkpro.core.io.text.TextReader} does, it scans the directories
+ * on a pool of threads and hands out every matching file as soon as it is found; alternatively, it reads
+ * the files to process from a manifest or a list. Documents hence come in no particular order.
+ *
+ * Patterns are globs relative to the source location, with the {@code [+]} and {@code [-]} prefixes of
+ * {@link ResourceCollectionReaderBase}. Subdirectories are only scanned on the way to, or within, the
+ * leading directories of an include pattern that contain no wildcards, e.g. only {@code a/b} and below
+ * for {@code a/b/**}{@code /*.txt}; patterns without a directory only match files of the source location
+ * itself. Patterns without wildcards name a file that is read without scanning, and that must exist.
+ * The document metadata is the same as that of {@code TextReader}, so that writers name their output
+ * the same.
+ *
+ * Files of up to {@value #MAX_BUFFERED_BYTES} bytes are read through a reused buffer, larger ones are
+ * memory-mapped.
+ */
+@TypeCapability(outputs = { "de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData" })
+public class ParallelTextReader extends CasCollectionReader_ImplBase {
+
+  public static final String PARAM_SOURCE_LOCATION = ComponentParameters.PARAM_SOURCE_LOCATION;
+  @ConfigurationParameter(name = PARAM_SOURCE_LOCATION, mandatory = true)
+  private File sourceLocation;
+
+  /**
+   * Patterns of the files to read; not supported together with a manifest or a list of files.
+   */
+  public static final String PARAM_PATTERNS = ComponentParameters.PARAM_PATTERNS;
+  @ConfigurationParameter(name = PARAM_PATTERNS, mandatory = false)
+  private String[] patterns;
+
+  /**
+   * File that lists the files to read, one per line and relative to the source location. Either
+   * separator is accepted, and empty lines are skipped. Read as UTF-8.
+   */
+  public static final String PARAM_MANIFEST = "manifest";
+  @ConfigurationParameter(name = PARAM_MANIFEST, mandatory = false)
+  private File manifest;
+
+  /**
+   * Files to read, relative to the source location. Names are taken as they are, also if they contain
+   * characters of glob patterns.
+   */
+  public static final String PARAM_FILES = "files";
+  @ConfigurationParameter(name = PARAM_FILES, mandatory = false)
+  private String[] files;
+
+  public static final String PARAM_ENCODING = ComponentParameters.PARAM_SOURCE_ENCODING;
+  @ConfigurationParameter(name = PARAM_ENCODING, mandatory = true, defaultValue = "UTF-8")
+  private String encoding;
+
+  public static final String PARAM_LANGUAGE = ComponentParameters.PARAM_LANGUAGE;
+  @ConfigurationParameter(name = PARAM_LANGUAGE, mandatory = false)
+  private String language;
+
+  /**
+   * Threads that scan the directories; 0, the default, is one per processor.
+   */
+  public static final String PARAM_SCAN_THREADS = "scanThreads";
+  @ConfigurationParameter(name = PARAM_SCAN_THREADS, mandatory = true, defaultValue = "0")
+  private int scanThreads;
+
+  static final int MAX_BUFFERED_BYTES = 1 << 24;
+
+  /**
+   * Files that the scan may find ahead of the reader, so that memory stays bounded on huge corpora.
+   */
+  private static final int MAX_PENDING_FILES = 1 << 16;
+
+  /**
+   * Marks the end of the scan in the queue.
+   */
+  private static final Path END = Paths.get("");
+
+  private Path root;
+
+  private URI rootUri;
+
+  private Charset charset;
+
+  private List<PathMatcher> includes;
+
+  private List<PathMatcher> excludes;
+
+  /**
+   * Directories below which include patterns can match files of subdirectories.
+   */
+  private List<Path> scanRoots;
+
+  private ForkJoinPool scanPool;
+
+  private BlockingQueue<Path> found;
+
+  private volatile Throwable scanFailure;
+
+  private BufferedReader manifestLines;
+
+  private int nextFile;
+
+  private Path next;
+
+  private boolean exhausted;
+
+  private int completed;
+
+  private byte[] buffer = new byte[1 << 16];
+
+  @Override
+  public void initialize(UimaContext context) throws ResourceInitializationException {
+    super.initialize(context);
+
+    if ((patterns != null ? 1 : 0) + (manifest != null ? 1 : 0) + (files != null ? 1 : 0) != 1) {
+      throw new ResourceInitializationException(new IllegalArgumentException(
+        "Set one of " + PARAM_PATTERNS + ", " + PARAM_MANIFEST + " and " + PARAM_FILES));
+    }
+    if (scanThreads < 0) {
+      throw new ResourceInitializationException(new IllegalArgumentException(
+        "scanThreads must not be negative, got " + scanThreads));
+    }
+    try {
+      charset = Charset.forName(encoding);
+    } catch (IllegalArgumentException e) {
+      throw new ResourceInitializationException(e);
+    }
+
+    root = sourceLocation.toPath().toAbsolutePath().normalize();
+    if (!Files.isDirectory(root)) {
+      throw new ResourceInitializationException(new IOException("Not a directory: " + root));
+    }
+    // As TextReader names them, with a single slash after the scheme
+    rootUri = root.toFile().toURI();
+
+    try {
+      if (manifest != null) {
+        manifestLines = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8);
+      } else if (patterns != null) {
+        startScan();
+      }
+    } catch (IOException e) {
+      throw new ResourceInitializationException(e);
+    }
+  }
+
+  private void startScan() {
+    includes = new ArrayList<>();
+    excludes = new ArrayList<>();
+    List<Path> literals = new ArrayList<>();
+    scanRoots = new ArrayList<>();
+    for (String pattern : patterns) {
+      if (pattern.startsWith(ResourceCollectionReaderBase.EXCLUDE_PREFIX)) {
+        excludes.add(matcher(pattern.substring(ResourceCollectionReaderBase.EXCLUDE_PREFIX.length())));
+        continue;
+      }
+      String include = pattern.startsWith(ResourceCollectionReaderBase.INCLUDE_PREFIX)
+        ? pattern.substring(ResourceCollectionReaderBase.INCLUDE_PREFIX.length()) : pattern;
+      if (isLiteral(include)) {
+        literals.add(root.resolve(include).normalize());
+      } else {
+        includes.add(matcher(include));
+        if (include.contains("/") || include.contains("**")) {
+          scanRoots.add(root.resolve(fixedDirectories(include)).normalize());
+        }
+      }
+    }
+
+    found = new LinkedBlockingQueue<>(MAX_PENDING_FILES);
+    boolean scan = !includes.isEmpty();
+    scanPool = new ForkJoinPool(scanThreads == 0 ? Runtime.getRuntime().availableProcessors() : scanThreads);
+    scanPool.execute(() -> {
+      try {
+        for (Path literal : literals) {
+          if (!isExcluded(root.relativize(literal))) {
+            if (!Files.isRegularFile(literal)) {
+              throw new FileNotFoundException("File [" + literal + "] does not exist");
+            }
+            found.put(literal);
+          }
+        }
+        if (scan) {
+          new ScanDirectory(root).invoke();
+        }
+      } catch (Throwable e) {
+        scanFailure = e;
+      } finally {
+        try {
+          found.put(END);
+        } catch (InterruptedException e) {
+          // closed while scanning
+        }
+      }
+    });
+  }
+
+  @Override
+  public boolean hasNext() throws IOException, CollectionException {
+    if (next == null && !exhausted) {
+      next = patterns == null ? nextListed() : nextFound();
+      exhausted = next == null;
+    }
+    return next != null;
+  }
+
+  private Path nextListed() throws IOException {
+    String line;
+    if (files != null) {
+      if (nextFile == files.length) {
+        return null;
+      }
+      line = files[nextFile++];
+    } else {
+      do {
+        line = manifestLines.readLine();
+        if (line == null) {
+          return null;
+        }
+        line = line.trim().replace('\\', '/');
+      } while (line.isEmpty());
+    }
+
+    Path listed = root.resolve(line).normalize();
+    if (!listed.startsWith(root)) {
+      throw new IOException("Listed file [" + line + "] is outside of " + root);
+    }
+    if (!Files.isRegularFile(listed)) {
+      throw new FileNotFoundException("Listed file [" + listed + "] does not exist");
+    }
+    return listed;
+  }
+
+  private Path nextFound() throws IOException {
+    Path path;
+    try {
+      path = found.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while scanning " + root);
+    }
+    if (path != END) {
+      return path;
+    }
+    if (scanFailure != null) {
+      // Fork-join may hand the failure over wrapped in a copy of itself
+      for (Throwable cause = scanFailure; cause != null; cause = cause.getCause()) {
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+      }
+      throw new IOException("Unable to scan " + root, scanFailure);
+    }
+    return null;
+  }
+
+  @Override
+  public void getNext(CAS aCAS) throws IOException, CollectionException {
+    if (!hasNext()) {
+      throw new CollectionException(new IllegalStateException("No more documents"));
+    }
+    Path file = next;
+    next = null;
+
+    URI fileUri = file.toFile().toURI();
+    String path = rootUri.relativize(fileUri).getRawPath();
+    DocumentMetaData metaData;
+    try {
+      metaData = DocumentMetaData.create(aCAS);
+    } catch (CASException e) {
+      throw new CollectionException(e);
+    }
+    metaData.setDocumentTitle(new File(path).getName());
+    metaData.setDocumentUri(fileUri.toString());
+    metaData.setDocumentId(path);
+    metaData.setDocumentBaseUri(rootUri.toString());
+    metaData.setCollectionId(rootUri.toString());
+    if (language != null) {
+      aCAS.setDocumentLanguage(language);
+    }
+    aCAS.setDocumentText(read(file));
+    completed++;
+  }
+
+  /**
+   * Decodes malformed input to replacement characters, as {@code TextReader} does.
+   */
+  private String read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > MAX_BUFFERED_BYTES) {
+        return charset.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE)
+          .decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size))
+          .toString();
+      }
+
+      // Read to the end, whatever the size was, in case the file is still growing
+      int length = 0;
+      while (true) {
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int read = channel.read(ByteBuffer.wrap(buffer, length, buffer.length - length));
+        if (read < 0) {
+          break;
+        }
+        length += read;
+      }
+      return new String(buffer, 0, length, charset);
+    }
+  }
+
+  @Override
+  public Progress[] getProgress() {
+    return new Progress[] { new ProgressImpl(completed, exhausted ? completed : -1, Progress.ENTITIES, !exhausted) };
+  }
+
+  @Override
+  public void close() throws IOException {
+    closeQuietly(manifestLines);
+    manifestLines = null;
+    if (scanPool != null) {
+      scanPool.shutdownNow();
+      scanPool = null;
+    }
+  }
+
+  private boolean isExcluded(Path relative) {
+    for (PathMatcher exclude : excludes) {
+      if (exclude.matches(relative)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isIncluded(Path relative) {
+    for (PathMatcher include : includes) {
+      if (include.matches(relative)) {
+        return !isExcluded(relative);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the matcher of a glob in which, as in the Ant patterns of {@code TextReader}, {@code **}{@code /}
+   *         also matches no directory at all.
+   */
+  private static PathMatcher matcher(String pattern) {
+    // Groups do not nest, so only patterns without one of their own are rewritten
+    String glob = pattern.indexOf('{') < 0 ? pattern.replace("**/", "{**/,}") : pattern;
+    return FileSystems.getDefault().getPathMatcher("glob:" + glob);
+  }
+
+  /**
+   * @return the leading directories of the pattern up to the first one with wildcards, or {@code ""}.
+   */
+  private static String fixedDirectories(String pattern) {
+    // A group may hold alternative directories
+    int end = pattern.indexOf('{') < 0 ? pattern.lastIndexOf('/') : -1;
+    for (int i = 0; i < end; i++) {
+      if ("*?[\\".indexOf(pattern.charAt(i)) >= 0) {
+        end = pattern.lastIndexOf('/', i);
+        break;
+      }
+    }
+    return end > 0 ? pattern.substring(0, end) : "";
+  }
+
+  private boolean canMatchBelow(Path directory) {
+    for (Path scanRoot : scanRoots) {
+      if (directory.startsWith(scanRoot) || scanRoot.startsWith(directory)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isLiteral(String pattern) {
+    for (int i = 0; i < pattern.length(); i++) {
+      if ("*?[{\\".indexOf(pattern.charAt(i)) >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Queues the matching files of a directory, and scans its subdirectories as tasks of their own.
+   */
+  private final class ScanDirectory extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Path directory;
+
+    private ScanDirectory(Path directory) {
+      this.directory = directory;
+    }
+
+    @Override
+    protected void compute() {
+      List<ScanDirectory> subdirectories = new ArrayList<>();
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+        for (Path entry : entries) {
+          BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+          if (attributes.isDirectory()) {
+            // Links to directories are not followed, as they may form cycles
+            if (!Files.isSymbolicLink(entry) && canMatchBelow(entry)) {
+              ScanDirectory subdirectory = new ScanDirectory(entry);
+              subdirectory.fork();
+              subdirectories.add(subdirectory);
+            }
+          } else if (attributes.isRegularFile() && isIncluded(root.relativize(entry))) {
+            found.put(entry);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new UncheckedIOException(new InterruptedIOException("Interrupted while scanning " + directory));
+      }
+      for (ScanDirectory subdirectory : subdirectories) {
+        subdirectory.join();
+      }
+    }
+  }
+}
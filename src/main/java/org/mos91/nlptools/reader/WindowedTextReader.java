@@ -0,0 +1,170 @@
+package org.mos91.nlptools.reader;
+
+import de.tudarmstadt.ukp.dkpro.core.api.io.ResourceCollectionReaderBase;
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
+import de.tudarmstadt.ukp.dkpro.core.api.parameter.ComponentParameters;
+import org.apache.uima.UimaContext;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.CASException;
+import org.apache.uima.collection.CollectionException;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.fit.descriptor.TypeCapability;
+import org.apache.uima.resource.ResourceInitializationException;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * Plain text reader that cuts every file into windows of bounded size and emits each window as a
+ * CAS of its own, so that the annotators never hold more than one window of a document.
+ *
+ * A window ends after the last paragraph break (an empty line) within the size limit; without one,
+ * after the last sentence end ({@code .}, {@code !} or {@code ?} followed by whitespace), then at the last
+ * whitespace, and only as a last resort in the middle of a word. All windows of a file carry its
+ * document metadata, and the last one is flagged with {@link DocumentMetaData#getIsLastSegment()}.
+ * {@link org.mos91.nlptools.writer.ConllUniWriter} with
+ * {@link org.mos91.nlptools.writer.ConllUniWriter#PARAM_APPEND_SEGMENTS} appends them to one file.
+ *
+ * Windows of the same file are emitted one after the other, so this reader needs a serial pipeline.
+ */
+@TypeCapability(outputs = { "de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData" })
+public class WindowedTextReader extends ResourceCollectionReaderBase {
+
+  public static final String PARAM_ENCODING = ComponentParameters.PARAM_SOURCE_ENCODING;
+  @ConfigurationParameter(name = PARAM_ENCODING, mandatory = true, defaultValue = "UTF-8")
+  private String encoding;
+
+  /**
+   * Maximum number of characters per window.
+   */
+  public static final String PARAM_MAX_WINDOW_CHARS = "maxWindowChars";
+  @ConfigurationParameter(name = PARAM_MAX_WINDOW_CHARS, mandatory = true, defaultValue = "65536")
+  private int maxWindowChars;
+
+  private Resource resource;
+
+  private Reader text;
+
+  private boolean endOfText;
+
+  /**
+   * Read ahead of the current window: {@code buffer[0..buffered)}.
+   */
+  private char[] buffer;
+
+  private int buffered;
+
+  @Override
+  public void initialize(UimaContext context) throws ResourceInitializationException {
+    super.initialize(context);
+
+    if (maxWindowChars < 1) {
+      throw new ResourceInitializationException(new IllegalArgumentException(
+        "maxWindowChars must be positive, got " + maxWindowChars));
+    }
+    buffer = new char[maxWindowChars + 1];
+  }
+
+  @Override
+  public boolean hasNext() throws IOException, CollectionException {
+    return text != null || super.hasNext();
+  }
+
+  @Override
+  public void getNext(CAS aCAS) throws IOException, CollectionException {
+    if (text == null) {
+      resource = nextFile();
+      text = new InputStreamReader(resource.getInputStream(), encoding);
+      endOfText = false;
+      buffered = 0;
+    }
+
+    try {
+      // Fill one char beyond the limit, so that a full window tells whether anything follows
+      while (!endOfText && buffered < buffer.length) {
+        int read = text.read(buffer, buffered, buffer.length - buffered);
+        if (read < 0) {
+          endOfText = true;
+        } else {
+          buffered += read;
+        }
+      }
+    } catch (IOException e) {
+      closeText();
+      throw e;
+    }
+
+    boolean last = buffered <= maxWindowChars;
+    int cut = last ? buffered : findCut();
+
+    initCas(aCAS, resource);
+    aCAS.setDocumentText(new String(buffer, 0, cut));
+    try {
+      DocumentMetaData.get(aCAS.getJCas()).setIsLastSegment(last);
+    } catch (CASException e) {
+      throw new CollectionException(e);
+    }
+
+    System.arraycopy(buffer, cut, buffer, 0, buffered - cut);
+    buffered -= cut;
+    if (last) {
+      closeText();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closeText();
+  }
+
+  /**
+   * @return end of the window in the full buffer, see the class comment.
+   */
+  private int findCut() {
+    int sentenceEnd = 0;
+    int whitespace = 0;
+    for (int i = maxWindowChars; i > 0; i--) {
+      char c = buffer[i];
+      if (c == '\n' && i < maxWindowChars) {
+        // the end of an empty line, possibly with whitespace on it
+        for (int j = i - 1; j >= 0 && Character.isWhitespace(buffer[j]); j--) {
+          if (buffer[j] == '\n') {
+            return i + 1;
+          }
+        }
+      }
+      if (Character.isWhitespace(c)) {
+        if (sentenceEnd == 0 && isSentenceEnd(buffer[i - 1])) {
+          sentenceEnd = i;
+        }
+        if (whitespace == 0) {
+          whitespace = i;
+        }
+      }
+    }
+
+    if (sentenceEnd > 0) {
+      return sentenceEnd;
+    }
+    if (whitespace > 0) {
+      return whitespace;
+    }
+    // do not split a surrogate pair
+    return Character.isHighSurrogate(buffer[maxWindowChars - 1]) && maxWindowChars > 1
+      ? maxWindowChars - 1 : maxWindowChars;
+  }
+
+  private static boolean isSentenceEnd(char c) {
+    return c == '.' || c == '!' || c == '?';
+  }
+
+  private void closeText() {
+    closeQuietly(text);
+    text = null;
+    resource = null;
+    buffered = 0;
+  }
+}
@@ -0,0 +1,166 @@
+package org.mos91.nlptools.schedule;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngine;
+import static org.apache.uima.fit.util.JCasUtil.selectCovered;
+import static org.apache.uima.fit.util.JCasUtil.selectSingle;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.mos91.nlptools.cache.DetachedSentence;
+import org.mos91.nlptools.cache.HeapMark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Threads that each own a parser, a fallback parser and a scratch CAS, and parse one sentence at a
+ * time. Sentences come and go detached, see {@link DetachedSentence}, so no CAS is shared between
+ * threads; the scratch CAS holds the whole document text, so offsets stay the same.
+ *
+ * {@link ScheduledParser} instances in the same JVM that name the same pool share one instance, see
+ * {@link #acquire}; the pool is closed when the last of them releases it.
+ */
+final class ParserPool {
+
+  private static final Map<String, ParserPool> OPEN = new HashMap<>();
+
+  private final String name;
+
+  private final ExecutorService executor;
+
+  private final BlockingQueue<Slot> slots;
+
+  private final List<Slot> allSlots = new ArrayList<>();
+
+  private int users;
+
+  private ParserPool(String name, int threadCount, AnalysisEngineDescription parser,
+                     AnalysisEngineDescription fallback) throws ResourceInitializationException {
+    this.name = name;
+    slots = new ArrayBlockingQueue<>(threadCount);
+    try {
+      for (int i = 0; i < threadCount; i++) {
+        AnalysisEngine parserEngine = createEngine(parser);
+        allSlots.add(new Slot(parserEngine, fallback == null ? null : createEngine(fallback),
+          parserEngine.newJCas()));
+      }
+    } catch (ResourceInitializationException | RuntimeException e) {
+      destroy();
+      throw e;
+    }
+    slots.addAll(allSlots);
+
+    executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+      Thread thread = new Thread(runnable, ParserPool.class.getSimpleName() + "-" + name);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @return the pool of that name, created with the given threads and engines on first use.
+   */
+  static synchronized ParserPool acquire(String name, int threadCount, AnalysisEngineDescription parser,
+                                         AnalysisEngineDescription fallback) throws ResourceInitializationException {
+    ParserPool pool = OPEN.get(name);
+    if (pool == null) {
+      pool = new ParserPool(name, threadCount, parser, fallback);
+      OPEN.put(name, pool);
+    }
+    pool.users++;
+    return pool;
+  }
+
+  void release() {
+    synchronized (ParserPool.class) {
+      if (--users > 0) {
+        return;
+      }
+      OPEN.remove(name);
+    }
+    executor.shutdownNow();
+    destroy();
+  }
+
+  /**
+   * Parses a sentence of the document text: the input holds the sentence and its tokens as
+   * annotations, the result what the parser added.
+   */
+  Future<DetachedSentence> submit(String text, String language, int sentenceBegin, DetachedSentence input,
+                                  boolean useFallback) {
+    return executor.submit(() -> {
+      Slot slot = slots.take();
+      try {
+        return slot.parse(text, language, sentenceBegin, input, useFallback);
+      } finally {
+        slots.add(slot);
+      }
+    });
+  }
+
+  private void destroy() {
+    for (Slot slot : allSlots) {
+      slot.parser.destroy();
+      if (slot.fallback != null) {
+        slot.fallback.destroy();
+      }
+    }
+  }
+
+  private static final class Slot {
+
+    private final AnalysisEngine parser;
+
+    private final AnalysisEngine fallback;
+
+    private final JCas jCas;
+
+    private Slot(AnalysisEngine parser, AnalysisEngine fallback, JCas jCas) {
+      this.parser = parser;
+      this.fallback = fallback;
+      this.jCas = jCas;
+    }
+
+    private DetachedSentence parse(String text, String language, int sentenceBegin, DetachedSentence input,
+                                   boolean useFallback) throws AnalysisEngineProcessException {
+      try {
+        jCas.setDocumentText(text);
+        jCas.setDocumentLanguage(language);
+        input.apply(jCas.getCas(), sentenceBegin, new ArrayList<AnnotationFS>());
+
+        Sentence sentence = selectSingle(jCas, Sentence.class);
+        List<Token> tokens = selectCovered(Token.class, sentence);
+        HeapMark mark = HeapMark.now(jCas.getCas());
+        (useFallback ? fallback : parser).process(jCas);
+
+        List<AnnotationFS> added = new ArrayList<>();
+        for (AnnotationFS annotation : jCas.getCas().getAnnotationIndex()) {
+          if (mark.isNew(annotation)) {
+            added.add(annotation);
+          }
+        }
+        DetachedSentence result = DetachedSentence.capture(sentence, tokens, added, mark);
+        if (result == null) {
+          throw new AnalysisEngineProcessException(new IllegalStateException(
+            "Parser output of sentence at " + sentenceBegin + " cannot be detached"));
+        }
+        return result;
+      } finally {
+        jCas.reset();
+      }
+    }
+  }
+}
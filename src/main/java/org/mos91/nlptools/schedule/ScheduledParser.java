@@ -0,0 +1,202 @@
+package org.mos91.nlptools.schedule;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
+import static org.apache.uima.fit.util.JCasUtil.select;
+import static org.apache.uima.fit.util.JCasUtil.selectCovered;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.UimaContext;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.component.JCasAnnotator_ImplBase;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.jcas.tcas.Annotation;
+import org.apache.uima.jcas.tcas.DocumentAnnotation;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.InvalidXMLException;
+import org.apache.uima.util.XMLInputSource;
+import org.mos91.nlptools.cache.DetachedSentence;
+import org.mos91.nlptools.cache.HeapMark;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Parses the sentences of a document on a {@link ParserPool} instead of one after the other, so that a
+ * few long sentences do not hold up the whole document. Sentences are handed out longest first, which
+ * keeps the pool busy until the end of the document, and applied back in document order. Sentences
+ * with more than {@link #PARAM_MAX_TOKENS} tokens go to the fallback parser, or are left unparsed
+ * without one.
+ *
+ * The parser must be sentence-local and read nothing but the annotations within a sentence, such as
+ * tokens, tags and lemmas. Create the description with {@link #describe}.
+ */
+public class ScheduledParser extends JCasAnnotator_ImplBase {
+
+  public static final String DEFAULT_POOL_NAME = "default";
+
+  /**
+   * Name of the pool; stages of the same name, such as those of the workers of a parallel pipeline,
+   * share it and its threads.
+   */
+  public static final String PARAM_POOL_NAME = "poolName";
+  @ConfigurationParameter(name = PARAM_POOL_NAME, mandatory = true, defaultValue = DEFAULT_POOL_NAME)
+  private String poolName;
+
+  public static final String PARAM_THREADS = "threads";
+  @ConfigurationParameter(name = PARAM_THREADS, mandatory = true, defaultValue = "2")
+  private int threads;
+
+  /**
+   * Longest sentence in tokens for the parser, 0 for no limit.
+   */
+  public static final String PARAM_MAX_TOKENS = "maxTokens";
+  @ConfigurationParameter(name = PARAM_MAX_TOKENS, mandatory = true, defaultValue = "0")
+  private int maxTokens;
+
+  /**
+   * Descriptor XML of the parser.
+   */
+  public static final String PARAM_PARSER = "parser";
+  @ConfigurationParameter(name = PARAM_PARSER, mandatory = true)
+  private String parserXml;
+
+  /**
+   * Descriptor XML of the parser for sentences beyond the maximum length, if any.
+   */
+  public static final String PARAM_FALLBACK_PARSER = "fallbackParser";
+  @ConfigurationParameter(name = PARAM_FALLBACK_PARSER, mandatory = false)
+  private String fallbackXml;
+
+  private ParserPool pool;
+
+  @Override
+  public void initialize(UimaContext context) throws ResourceInitializationException {
+    super.initialize(context);
+
+    pool = ParserPool.acquire(poolName, threads, parse(parserXml), fallbackXml == null ? null : parse(fallbackXml));
+  }
+
+  @Override
+  public void process(JCas aJCas) throws AnalysisEngineProcessException {
+    String text = aJCas.getDocumentText();
+    String language = aJCas.getDocumentLanguage();
+
+    List<Sentence> sentences = new ArrayList<>(select(aJCas, Sentence.class));
+    List<List<Token>> tokens = new ArrayList<>(sentences.size());
+    List<Integer> order = new ArrayList<>(sentences.size());
+    for (int s = 0; s < sentences.size(); s++) {
+      tokens.add(selectCovered(Token.class, sentences.get(s)));
+      order.add(s);
+    }
+    order.sort((a, b) -> Integer.compare(tokens.get(b).size(), tokens.get(a).size()));
+
+    HeapMark all = HeapMark.start(aJCas.getCas());
+    List<Future<DetachedSentence>> results = new ArrayList<>(sentences.size());
+    for (int s = 0; s < sentences.size(); s++) {
+      results.add(null);
+    }
+    try {
+      for (int s : order) {
+        boolean tooLong = maxTokens > 0 && tokens.get(s).size() > maxTokens;
+        if (tooLong && fallbackXml == null) {
+          continue;
+        }
+        Sentence sentence = sentences.get(s);
+        DetachedSentence input = DetachedSentence.capture(sentence, new ArrayList<AnnotationFS>(),
+          coveredBy(aJCas, sentence), all);
+        if (input == null) {
+          throw new AnalysisEngineProcessException(new IllegalStateException(
+            "Sentence at " + sentence.getBegin() + " refers to annotations outside of it"));
+        }
+        results.set(s, pool.submit(text, language, sentence.getBegin(), input, tooLong));
+      }
+
+      for (int s = 0; s < sentences.size(); s++) {
+        Future<DetachedSentence> result = results.get(s);
+        if (result != null) {
+          result.get().apply(aJCas.getCas(), sentences.get(s).getBegin(), tokens.get(s));
+        }
+      }
+    } catch (ExecutionException e) {
+      throw new AnalysisEngineProcessException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AnalysisEngineProcessException(e);
+    } finally {
+      for (Future<DetachedSentence> result : results) {
+        if (result != null) {
+          result.cancel(false);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (pool != null) {
+      pool.release();
+      pool = null;
+    }
+    super.destroy();
+  }
+
+  /**
+   * @return the sentence and the annotations within it, in index order.
+   */
+  private static List<Annotation> coveredBy(JCas aJCas, Sentence sentence) {
+    List<Annotation> covered = new ArrayList<>();
+    covered.add(sentence);
+    for (Annotation annotation : selectCovered(aJCas, Annotation.class, sentence)) {
+      if (annotation != sentence && !(annotation instanceof DocumentAnnotation)) {
+        covered.add(annotation);
+      }
+    }
+    return covered;
+  }
+
+  /**
+   * @return the description of a stage that parses with the given parser on a pool of threads, using
+   *         the fallback parser, if not null, for sentences with more than {@code maxTokens} tokens.
+   */
+  public static AnalysisEngineDescription describe(String poolName, int threads, AnalysisEngineDescription parser,
+                                                   int maxTokens, AnalysisEngineDescription fallback)
+    throws ResourceInitializationException {
+    return createEngineDescription(ScheduledParser.class,
+      PARAM_POOL_NAME, poolName,
+      PARAM_THREADS, threads,
+      PARAM_MAX_TOKENS, maxTokens,
+      PARAM_PARSER, toXml(parser),
+      PARAM_FALLBACK_PARSER, fallback == null ? null : toXml(fallback));
+  }
+
+  private static String toXml(AnalysisEngineDescription description) throws ResourceInitializationException {
+    StringWriter xml = new StringWriter();
+    try {
+      description.toXML(xml);
+    } catch (SAXException | IOException e) {
+      throw new ResourceInitializationException(e);
+    }
+    return xml.toString();
+  }
+
+  private static AnalysisEngineDescription parse(String xml) throws ResourceInitializationException {
+    try {
+      return UIMAFramework.getXMLParser().parseAnalysisEngineDescription(
+        new XMLInputSource(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), null));
+    } catch (InvalidXMLException e) {
+      throw new ResourceInitializationException(e);
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package org.mos91.nlptools.writer;
+
+import de.tudarmstadt.ukp.dkpro.core.api.semantics.type.SemanticArgument;
+
+import java.util.Arrays;
+
+/**
+ * Semantic arguments of the sentence being written, as a matrix of rows by predicates. Cells hold the
+ * index of the argument in a table of the sentence's arguments, or {@link #NONE}.
+ *
+ * The arrays are reset for every sentence and only grow, so writing a document allocates nothing per
+ * sentence once they have reached the size of the largest sentence.
+ *
+ * This class is not thread-safe.
+ */
+final class ArgumentMatrix {
+
+  static final int NONE = -1;
+
+  private int[] cells = new int[256];
+
+  private SemanticArgument[] arguments = new SemanticArgument[16];
+
+  private int argumentCount;
+
+  private int predCount;
+
+  /**
+   * Empties the matrix for a sentence of the given size.
+   */
+  void reset(int rowCount, int predCount) {
+    Arrays.fill(arguments, 0, argumentCount, null);
+    argumentCount = 0;
+    this.predCount = predCount;
+
+    int cellCount = rowCount * predCount;
+    if (cellCount > cells.length) {
+      cells = new int[Math.max(cellCount, cells.length * 2)];
+    }
+    Arrays.fill(cells, 0, cellCount, NONE);
+  }
+
+  /**
+   * @return index of the argument in the table, for {@link #set}.
+   */
+  int add(SemanticArgument argument) {
+    if (argumentCount == arguments.length) {
+      arguments = Arrays.copyOf(arguments, argumentCount * 2);
+    }
+    arguments[argumentCount] = argument;
+    return argumentCount++;
+  }
+
+  void set(int row, int pred, int argument) {
+    cells[row * predCount + pred] = argument;
+  }
+
+  /**
+   * @return the argument of the predicate at the row, or null.
+   */
+  SemanticArgument get(int row, int pred) {
+    int argument = cells[row * predCount + pred];
+    return argument == NONE ? null : arguments[argument];
+  }
+}
@@ -0,0 +1,247 @@
+package org.mos91.nlptools.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Writes files on a dedicated I/O thread, so that slow storage does not stall the annotation thread.
+ *
+ * Content is written into pooled direct byte buffers; full buffers are handed over to the I/O thread,
+ * which drains them into a {@link FileChannel} and returns them to the pool. The pool bounds memory to
+ * {@code bufferCount * bufferSize}: when every buffer is in flight, writing blocks until the I/O thread
+ * frees one.
+ *
+ * Files are written in the order they are opened, and only one file may be open at a time. The first
+ * I/O error is kept and rethrown to the writing side; all later content is discarded.
+ *
+ * This class is not thread-safe.
+ */
+final class AsyncFileSink {
+
+  private static final Chunk END = new Chunk(null, null, false, null);
+
+  private final BlockingQueue<ByteBuffer> freeBuffers;
+
+  private final BlockingQueue<Chunk> pending = new LinkedBlockingQueue<>();
+
+  private final Thread ioThread;
+
+  private volatile IOException failure;
+
+  AsyncFileSink(String name, int bufferSize, int bufferCount) {
+    if (bufferSize < 1 || bufferCount < 1) {
+      throw new IllegalArgumentException("Buffer size and count must be positive, got " + bufferSize
+        + " and " + bufferCount);
+    }
+
+    freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+    for (int i = 0; i < bufferCount; i++) {
+      freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+    }
+
+    ioThread = new Thread(this::drain, name);
+    ioThread.setDaemon(true);
+    ioThread.start();
+  }
+
+  /**
+   * @return a stream of the file content. The file is created or truncated by the I/O thread and is
+   *         complete once the stream is closed and the sink is {@link #flush() flushed}.
+   */
+  OutputStream open(File file) throws IOException {
+    checkFailure();
+
+    return new ChunkOutputStream(file);
+  }
+
+  /**
+   * Waits until everything handed over so far has been written.
+   */
+  void flush() throws IOException {
+    Chunk barrier = new Chunk(null, null, false, new CountDownLatch(1));
+    pending.add(barrier);
+    try {
+      barrier.barrier.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while flushing");
+    }
+    checkFailure();
+  }
+
+  /**
+   * Flushes pending content and stops the I/O thread.
+   */
+  void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      pending.add(END);
+      try {
+        ioThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  void checkFailure() throws IOException {
+    if (failure != null) {
+      throw new IOException("Asynchronous write failed", failure);
+    }
+  }
+
+  private void drain() {
+    FileChannel channel = null;
+    while (true) {
+      Chunk chunk;
+      try {
+        chunk = pending.take();
+      } catch (InterruptedException e) {
+        break;
+      }
+
+      if (chunk == END) {
+        break;
+      }
+      if (chunk.barrier != null) {
+        chunk.barrier.countDown();
+        continue;
+      }
+
+      try {
+        if (failure == null) {
+          if (channel == null) {
+            File parent = chunk.file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+              throw new IOException("Unable to create directory [" + parent + "]");
+            }
+            channel = FileChannel.open(chunk.file.toPath(), StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+          }
+          if (chunk.buffer != null) {
+            chunk.buffer.flip();
+            while (chunk.buffer.hasRemaining()) {
+              channel.write(chunk.buffer);
+            }
+          }
+        }
+        if (chunk.last && channel != null) {
+          FileChannel written = channel;
+          channel = null;
+          written.close();
+        }
+      } catch (IOException e) {
+        failure = e;
+        closeQuietly(channel);
+        channel = null;
+      } finally {
+        if (chunk.buffer != null) {
+          chunk.buffer.clear();
+          freeBuffers.add(chunk.buffer);
+        }
+      }
+    }
+    closeQuietly(channel);
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // already failing
+      }
+    }
+  }
+
+  private static final class Chunk {
+
+    private final File file;
+
+    private final ByteBuffer buffer;
+
+    private final boolean last;
+
+    private final CountDownLatch barrier;
+
+    private Chunk(File file, ByteBuffer buffer, boolean last, CountDownLatch barrier) {
+      this.file = file;
+      this.buffer = buffer;
+      this.last = last;
+      this.barrier = barrier;
+    }
+  }
+
+  private final class ChunkOutputStream extends OutputStream {
+
+    private final File file;
+
+    private ByteBuffer buffer;
+
+    private boolean closed;
+
+    private ChunkOutputStream(File file) {
+      this.file = file;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      ensureRemaining();
+      buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        ensureRemaining();
+        int n = Math.min(len, buffer.remaining());
+        buffer.put(b, off, n);
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      hand(true);
+      checkFailure();
+    }
+
+    private void ensureRemaining() throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      if (buffer != null && !buffer.hasRemaining()) {
+        hand(false);
+      }
+      if (buffer == null) {
+        checkFailure();
+        try {
+          buffer = freeBuffers.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for a write buffer");
+        }
+      }
+    }
+
+    private void hand(boolean last) {
+      pending.add(new Chunk(file, buffer, last, null));
+      buffer = null;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package org.mos91.nlptools.writer;
+
+import de.tudarmstadt.ukp.dkpro.core.api.io.JCasFileWriter_ImplBase;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.fit.descriptor.TypeCapability;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.TypeSystemUtil;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes every CAS in the compressed binary form of UIMA (form 6), so that a later run can resume from
+ * it with {@link org.mos91.nlptools.reader.CasCheckpointReader} instead of running the engines before
+ * this one again. The type system of the CAS goes to {@value #TYPE_SYSTEM_FILE} in the target location;
+ * the reader needs it to read the files even if its own type system has changed in the meantime.
+ *
+ * Every CAS becomes a file of its own, named after its source, so documents must not be split into
+ * segments.
+ */
+@TypeCapability(inputs = { "de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData" })
+public class CasCheckpointWriter extends JCasFileWriter_ImplBase {
+
+  public static final String FILENAME_EXTENSION = ".bcas";
+
+  public static final String TYPE_SYSTEM_FILE = "typesystem.xml";
+
+  private TypeSystem writtenTypeSystem;
+
+  @Override
+  public void process(JCas aJCas) throws AnalysisEngineProcessException {
+    try {
+      if (writtenTypeSystem != aJCas.getTypeSystem()) {
+        writeTypeSystem(aJCas);
+        writtenTypeSystem = aJCas.getTypeSystem();
+      }
+      try (OutputStream out = getOutputStream(aJCas, FILENAME_EXTENSION)) {
+        Serialization.serializeWithCompression(aJCas.getCas(), out, aJCas.getTypeSystem());
+      }
+    } catch (IOException | SAXException | ResourceInitializationException e) {
+      throw new AnalysisEngineProcessException(e);
+    }
+  }
+
+  /**
+   * Writes the type system through a temporary file, as every worker of a parallel pipeline writes it.
+   */
+  private void writeTypeSystem(JCas aJCas) throws IOException, SAXException {
+    Path target = new File(getTargetLocation(), TYPE_SYSTEM_FILE).toPath();
+    Files.createDirectories(target.toAbsolutePath().getParent());
+    Path temporary = Files.createTempFile(target.toAbsolutePath().getParent(), TYPE_SYSTEM_FILE, ".tmp");
+    try {
+      try (OutputStream out = Files.newOutputStream(temporary)) {
+        TypeSystemUtil.typeSystem2TypeSystemDescription(aJCas.getTypeSystem()).toXML(out);
+      }
+      Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+}
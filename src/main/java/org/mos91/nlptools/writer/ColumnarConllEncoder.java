@@ -0,0 +1,206 @@
+package org.mos91.nlptools.writer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes the rows of one document into the binary columnar format written by {@link ConllUniWriter}
+ * in {@link ConllUniWriter#PARAM_BINARY_OUTPUT binary output} mode. All numbers are unsigned LEB128
+ * varints, all strings UTF-8:
+ *
+ * <pre>
+ * MAGIC VERSION                   MAGIC as 4 bytes, big-endian
+ * columnCount fieldId*            field ids of the columns, in row format order
+ * sentenceCount tokenCount
+ * sentenceLength*                 tokens of every sentence
+ * column*                         one per field id, in the order above
+ * </pre>
+ *
+ * {@link ConllFieldWriter#HEAD_FIELD HEAD} and {@link ConllFieldWriter#PHEAD_FIELD PHEAD} are integer
+ * columns holding {@code head + 1} per token, 0 for {@code _}. Every other field is dictionary-encoded
+ * as {@code dictionarySize (byteLength bytes)* code*}, with one code per token. Values are the ones the
+ * text output would contain, so a missing value is {@code _}, and token ids are implied by the position
+ * in the sentence.
+ *
+ * This class is not thread-safe.
+ */
+public final class ColumnarConllEncoder {
+
+  public static final int MAGIC = 0x434e4c42;
+
+  public static final int VERSION = 1;
+
+  private static final String NULL_VALUE = "null";
+
+  private final int[] columnFields;
+
+  private final boolean[] intColumns;
+
+  private final List<Map<String, Integer>> dictionaries = new ArrayList<>();
+
+  private final List<List<String>> dictionaryValues = new ArrayList<>();
+
+  /**
+   * Dictionary codes or head values, per column and token.
+   */
+  private final int[][] values;
+
+  private int tokenCount;
+
+  private int[] sentenceLengths = new int[64];
+
+  private int sentenceCount;
+
+  private int sentenceTokens;
+
+  private byte[] bytes = new byte[1 << 12];
+
+  private int length;
+
+  /**
+   * @param fieldSlots output column of every field, as for {@link ConllFieldWriter}.
+   */
+  ColumnarConllEncoder(int[] fieldSlots) {
+    int columnCount = 0;
+    for (int slot : fieldSlots) {
+      columnCount = Math.max(columnCount, slot + 1);
+    }
+    columnFields = new int[columnCount];
+    intColumns = new boolean[columnCount];
+    for (int field = 0; field < fieldSlots.length; field++) {
+      int slot = fieldSlots[field];
+      if (slot >= 0) {
+        columnFields[slot] = field;
+        intColumns[slot] = field == ConllFieldWriter.HEAD_FIELD || field == ConllFieldWriter.PHEAD_FIELD;
+      }
+    }
+    values = new int[columnCount][256];
+    for (int c = 0; c < columnCount; c++) {
+      dictionaries.add(new HashMap<>());
+      dictionaryValues.add(new ArrayList<>());
+    }
+  }
+
+  /**
+   * Adds a token row. {@code fields} holds the value of every column, as collected by
+   * {@link ConllFieldWriter}.
+   */
+  void addRow(String[] fields) {
+    if (values.length > 0 && tokenCount == values[0].length) {
+      for (int c = 0; c < values.length; c++) {
+        values[c] = Arrays.copyOf(values[c], tokenCount * 2);
+      }
+    }
+
+    for (int c = 0; c < values.length; c++) {
+      String value = fields[c] != null ? fields[c] : NULL_VALUE;
+      values[c][tokenCount] = intColumns[c] ? encodeHead(value) : code(c, value);
+    }
+    tokenCount++;
+    sentenceTokens++;
+  }
+
+  void endSentence() {
+    if (sentenceCount == sentenceLengths.length) {
+      sentenceLengths = Arrays.copyOf(sentenceLengths, sentenceCount * 2);
+    }
+    sentenceLengths[sentenceCount++] = sentenceTokens;
+    sentenceTokens = 0;
+  }
+
+  /**
+   * Writes the document in one call and resets the encoder for the next one.
+   */
+  void writeTo(OutputStream out) throws IOException {
+    length = 0;
+    ensureCapacity(4);
+    for (int shift = 24; shift >= 0; shift -= 8) {
+      bytes[length++] = (byte) (MAGIC >>> shift);
+    }
+    putVarint(VERSION);
+    putVarint(values.length);
+    for (int field : columnFields) {
+      putVarint(field);
+    }
+
+    putVarint(sentenceCount);
+    putVarint(tokenCount);
+    for (int s = 0; s < sentenceCount; s++) {
+      putVarint(sentenceLengths[s]);
+    }
+
+    for (int c = 0; c < values.length; c++) {
+      if (!intColumns[c]) {
+        List<String> dictionary = dictionaryValues.get(c);
+        putVarint(dictionary.size());
+        for (String value : dictionary) {
+          byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+          putVarint(encoded.length);
+          ensureCapacity(encoded.length);
+          System.arraycopy(encoded, 0, bytes, length, encoded.length);
+          length += encoded.length;
+        }
+      }
+      int[] column = values[c];
+      for (int t = 0; t < tokenCount; t++) {
+        putVarint(column[t]);
+      }
+    }
+
+    out.write(bytes, 0, length);
+    reset();
+  }
+
+  void reset() {
+    tokenCount = 0;
+    sentenceCount = 0;
+    sentenceTokens = 0;
+    for (int c = 0; c < values.length; c++) {
+      dictionaries.get(c).clear();
+      dictionaryValues.get(c).clear();
+    }
+  }
+
+  private int code(int column, String value) {
+    Map<String, Integer> dictionary = dictionaries.get(column);
+    Integer code = dictionary.get(value);
+    if (code == null) {
+      code = dictionary.size();
+      dictionary.put(value, code);
+      dictionaryValues.get(column).add(value);
+    }
+    return code;
+  }
+
+  private static int encodeHead(String head) {
+    if (ConllUniWriter.UNUSED.equals(head)) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(head) + 1;
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException("Head is not a token id: " + head, e);
+    }
+  }
+
+  private void putVarint(int value) {
+    ensureCapacity(5);
+    while ((value & ~0x7f) != 0) {
+      bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    bytes[length++] = (byte) value;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (length + extra > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+    }
+  }
+}
@@ -1,10 +1,10 @@
 package org.mos91.nlptools.writer;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 public class ConllFieldWriter {
 
@@ -36,6 +36,44 @@ public class ConllFieldWriter {
 
   public static final String APREDS_FIELD_NAME = "apreds";
 
+  public static final int FORM_FIELD = 0;
+
+  public static final int LEMMA_FIELD = 1;
+
+  public static final int PLEMMA_FIELD = 2;
+
+  public static final int POS_FIELD = 3;
+
+  public static final int PPOS_FIELD = 4;
+
+  public static final int FEAT_FIELD = 5;
+
+  public static final int PFEAT_FIELD = 6;
+
+  public static final int HEAD_FIELD = 7;
+
+  public static final int PHEAD_FIELD = 8;
+
+  public static final int DEPREL_FIELD = 9;
+
+  public static final int PDEPREL_FIELD = 10;
+
+  public static final int FILLPRED_FIELD = 11;
+
+  public static final int PRED_FIELD = 12;
+
+  public static final int APREDS_FIELD = 13;
+
+  public static final int FIELD_COUNT = 14;
+
+  private static final String[] FIELD_NAMES = {
+    FORM_FIELD_NAME, LEMMA_FIELD_NAME, PLEMMA_FIELD_NAME, POS_FIELD_NAME, PPOS_FIELD_NAME,
+    FEAT_FIELD_NAME, PFEAT_FIELD_NAME, HEAD_FIELD_NAME, PHEAD_FIELD_NAME, DEPREL_FIELD_NAME,
+    PDEPREL_FIELD_NAME, FILLPRED_FIELD_NAME, PRED_FIELD_NAME, APREDS_FIELD_NAME
+  };
+
+  private static final int NO_SLOT = -1;
+
   private int id;
 
   private int fieldCount = 0;
@@ -44,23 +82,104 @@ public class ConllFieldWriter {
 
   private String[] strings;
 
+  /**
+   * Tag values of every slot, as ids of {@link #tags}; used instead of {@link #strings} when
+   * {@code tagCounts[slot] > 0}. More than one tag is joined by tabs.
+   */
+  private final int[][] tagLists;
+
+  private final int[] tagCounts;
+
+  private final TagDictionary tags;
+
   private String fieldSeparator = "\t";
 
-  private Map<String, Integer> fieldIdxs = new HashMap();
+  /**
+   * Output column of every field, indexed by field id, or {@link #NO_SLOT} if the format does not
+   * contain the field.
+   */
+  private final int[] fieldSlots;
 
-  public ConllFieldWriter(String format, Map<String, Integer> fieldIdxs) {
-    this.format = format;
-    initIdxs(fieldIdxs);
+  private static final int INITIAL_LINE_CAPACITY = 256;
+
+  private static final String NULL_STRING = "null";
+
+  private static final char[] NULL_CHARS = NULL_STRING.toCharArray();
+
+  /**
+   * Reused between rows: a token line is assembled here and handed to the writer in one call.
+   */
+  private char[] line = new char[INITIAL_LINE_CAPACITY];
+
+  private int lineLength;
+
+  private EncodedLine encodedLine;
+
+  private byte[] tabBytes;
+
+  private byte[] separatorBytes;
+
+  private byte[] newlineBytes;
+
+  private byte[] nullBytes;
+
+  /**
+   * @param fieldSlots output column of every field, indexed by field id ({@link #FORM_FIELD} ...
+   *                   {@link #APREDS_FIELD}); negative for fields absent from the format.
+   *                   See {@link #newFieldSlots()}.
+   */
+  public ConllFieldWriter(String format, int[] fieldSlots) {
+    this(format, fieldSlots, new TagDictionary(StandardCharsets.UTF_8, TagDictionary.DEFAULT_CAPACITY));
   }
 
-  private void initIdxs(Map<String, Integer> fieldIdxs) {
-    this.fieldIdxs = fieldIdxs;
-    fieldCount = fieldIdxs.keySet().size();
+  /**
+   * @param tags dictionary of tag values, which also determines the encoding of
+   *             {@link #print(OutputStream)}.
+   */
+  ConllFieldWriter(String format, int[] fieldSlots, TagDictionary tags) {
+    this.format = format;
+    this.tags = tags;
+    if (fieldSlots.length != FIELD_COUNT) {
+      throw new IllegalArgumentException("Expected " + FIELD_COUNT + " field slots, got " + fieldSlots.length);
+    }
+    this.fieldSlots = fieldSlots.clone();
+    for (int slot : fieldSlots) {
+      fieldCount = Math.max(fieldCount, slot + 1);
+    }
     strings = new String[fieldCount];
+    tagLists = new int[fieldCount][1];
+    tagCounts = new int[fieldCount];
+  }
+
+  /**
+   * @return a slot plan with every field absent from the format.
+   */
+  public static int[] newFieldSlots() {
+    int[] fieldSlots = new int[FIELD_COUNT];
+    Arrays.fill(fieldSlots, NO_SLOT);
+    return fieldSlots;
+  }
+
+  /**
+   * @return id of the field with the given name, or -1 if there is no such field.
+   */
+  public static int fieldId(String fieldName) {
+    for (int i = 0; i < FIELD_NAMES.length; i++) {
+      if (FIELD_NAMES[i].equals(fieldName)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  public static String fieldName(int fieldId) {
+    return FIELD_NAMES[fieldId];
   }
 
   public void setFieldSeparator(String fieldSeparator) {
     this.fieldSeparator = fieldSeparator;
+    this.separatorBytes = null;
   }
 
   public ConllFieldWriter putId(int id) {
@@ -70,129 +189,334 @@ public class ConllFieldWriter {
   }
 
   public ConllFieldWriter putForm(String form) {
-    return putField(FORM_FIELD_NAME, form);
+    return putField(FORM_FIELD, form);
   }
 
   public boolean hasForm() {
-    return fieldIdxs.containsKey(FORM_FIELD_NAME);
+    return hasField(FORM_FIELD);
   }
 
   public ConllFieldWriter putLemma(String lemma) {
-    return putField(LEMMA_FIELD_NAME, lemma);
+    return putField(LEMMA_FIELD, lemma);
   }
 
   public boolean hasLemma() {
-    return fieldIdxs.containsKey(LEMMA_FIELD_NAME);
+    return hasField(LEMMA_FIELD);
   }
 
   public ConllFieldWriter putPlemma(String plemma) {
-    return putField(PLEMMA_FIELD_NAME, plemma);
+    return putField(PLEMMA_FIELD, plemma);
   }
 
   public boolean hasPLemma() {
-    return fieldIdxs.containsKey(PLEMMA_FIELD_NAME);
+    return hasField(PLEMMA_FIELD);
   }
 
   public ConllFieldWriter putPos(String pos) {
-    return putField(POS_FIELD_NAME, pos);
+    return putField(POS_FIELD, pos);
   }
 
   public boolean hasPos() {
-    return fieldIdxs.containsKey(POS_FIELD_NAME);
+    return hasField(POS_FIELD);
   }
 
   public ConllFieldWriter putPPos(String ppos) {
-    return putField(PPOS_FIELD_NAME, ppos);
+    return putField(PPOS_FIELD, ppos);
   }
 
   public boolean hasPPos() {
-    return fieldIdxs.containsKey(PPOS_FIELD_NAME);
+    return hasField(PPOS_FIELD);
   }
 
   public ConllFieldWriter putFeat(String feat) {
-    return putField(FEAT_FIELD_NAME, feat);
+    return putField(FEAT_FIELD, feat);
   }
 
   public boolean hasFeat() {
-    return fieldIdxs.containsKey(FEAT_FIELD_NAME);
+    return hasField(FEAT_FIELD);
   }
 
   public ConllFieldWriter putPFeat(String pfeat) {
-    return putField(PFEAT_FIELD_NAME, pfeat);
+    return putField(PFEAT_FIELD, pfeat);
   }
 
   public boolean hasPFeat() {
-    return fieldIdxs.containsKey(PFEAT_FIELD_NAME);
+    return hasField(PFEAT_FIELD);
   }
 
   public ConllFieldWriter putHead(String head) {
-    return putField(HEAD_FIELD_NAME, head);
+    return putField(HEAD_FIELD, head);
   }
 
   public boolean hasHead() {
-    return fieldIdxs.containsKey(HEAD_FIELD_NAME);
+    return hasField(HEAD_FIELD);
   }
 
   public ConllFieldWriter putPHead(String phead) {
-    return putField(PHEAD_FIELD_NAME, phead);
+    return putField(PHEAD_FIELD, phead);
   }
 
   public boolean hasPHead() {
-    return fieldIdxs.containsKey(PHEAD_FIELD_NAME);
+    return hasField(PHEAD_FIELD);
   }
 
   public ConllFieldWriter putDeprel(String deprel) {
-    return putField(DEPREL_FIELD_NAME, deprel);
+    return putField(DEPREL_FIELD, deprel);
   }
 
   public boolean hasDeprel() {
-    return fieldIdxs.containsKey(DEPREL_FIELD_NAME);
+    return hasField(DEPREL_FIELD);
   }
 
   public ConllFieldWriter putPDeprel(String pdeprel) {
-    return putField(PDEPREL_FIELD_NAME, pdeprel);
+    return putField(PDEPREL_FIELD, pdeprel);
   }
 
   public boolean hasPDeprel() {
-    return fieldIdxs.containsKey(PDEPREL_FIELD_NAME);
+    return hasField(PDEPREL_FIELD);
   }
 
   public ConllFieldWriter putFillpred(String fillPred) {
-    return putField(FILLPRED_FIELD_NAME, fillPred);
+    return putField(FILLPRED_FIELD, fillPred);
   }
 
   public boolean hasFillpred() {
-    return fieldIdxs.containsKey(FILLPRED_FIELD_NAME);
+    return hasField(FILLPRED_FIELD);
   }
 
   public ConllFieldWriter putPred(String pred) {
-    return putField(PRED_FIELD_NAME, pred);
+    return putField(PRED_FIELD, pred);
   }
 
   public boolean hasPred() {
-    return fieldIdxs.containsKey(PRED_FIELD_NAME);
+    return hasField(PRED_FIELD);
   }
 
   public ConllFieldWriter putApreds(String apreds) {
-    return putField(APREDS_FIELD_NAME, apreds);
+    return putField(APREDS_FIELD, apreds);
   }
 
   public boolean hasApreds() {
-    return fieldIdxs.containsKey(APREDS_FIELD_NAME);
+    return hasField(APREDS_FIELD);
   }
 
   public ConllFieldWriter putField(String fieldName, String fieldValue) {
-    if (fieldIdxs.containsKey(fieldName)) {
-      strings[fieldIdxs.get(fieldName)] = fieldValue;
+    int fieldId = fieldId(fieldName);
+    if (fieldId >= 0) {
+      putField(fieldId, fieldValue);
+    }
+
+    return this;
+  }
+
+  public ConllFieldWriter putField(int fieldId, String fieldValue) {
+    int slot = fieldSlots[fieldId];
+    if (slot != NO_SLOT) {
+      strings[slot] = fieldValue;
+      tagCounts[slot] = 0;
+    }
+
+    return this;
+  }
+
+  /**
+   * Puts a value from a small closed tagset, such as a POS tag. It is looked up in the tag dictionary,
+   * so that {@link #print(OutputStream)} copies its encoded bytes.
+   */
+  ConllFieldWriter putTag(int fieldId, String tag) {
+    int slot = fieldSlots[fieldId];
+    if (slot != NO_SLOT) {
+      if (tag == null) {
+        // same output as a null field
+        tag = NULL_STRING;
+      }
+      int id = tags.id(tag);
+      if (id == TagDictionary.NO_TAG) {
+        strings[slot] = tag;
+        tagCounts[slot] = 0;
+      } else {
+        strings[slot] = null;
+        tagLists[slot][0] = id;
+        tagCounts[slot] = 1;
+      }
+    }
+
+    return this;
+  }
+
+  /**
+   * Appends a tag to the field, separated by a tab from the ones before; the first call on an empty
+   * field is the same as {@link #putTag(int, String)}.
+   */
+  ConllFieldWriter addTag(int fieldId, String tag) {
+    int slot = fieldSlots[fieldId];
+    if (slot == NO_SLOT) {
+      return this;
+    }
+    if (tagCounts[slot] == 0 && strings[slot] == null) {
+      return putTag(fieldId, tag);
+    }
+
+    int id = tagCounts[slot] > 0 ? tags.id(tag) : TagDictionary.NO_TAG;
+    if (id == TagDictionary.NO_TAG) {
+      // dictionary full, the field falls back to a plain string
+      strings[slot] = slotString(slot) + '\t' + tag;
+      tagCounts[slot] = 0;
+    } else {
+      if (tagCounts[slot] == tagLists[slot].length) {
+        tagLists[slot] = Arrays.copyOf(tagLists[slot], tagCounts[slot] * 2);
+      }
+      tagLists[slot][tagCounts[slot]++] = id;
     }
 
     return this;
   }
 
+  public boolean hasField(int fieldId) {
+    return fieldSlots[fieldId] != NO_SLOT;
+  }
+
+  /**
+   * Writes the current row as {@code id\tfield1<sep>field2...\n} and clears the fields. The line is
+   * assembled in a reused char buffer, so no intermediate strings are created per row.
+   */
   public void print(PrintWriter out) {
-    out.printf("%d\t%s\n", id, Arrays.stream(strings).collect(Collectors.joining(fieldSeparator)));
-    for (int i = 0;i < strings.length;i++) {
-      strings[i] = null;
+    lineLength = 0;
+    appendInt(id);
+    appendChar('\t');
+    for (int i = 0; i < strings.length; i++) {
+      if (i != 0) {
+        appendString(fieldSeparator);
+      }
+      if (tagCounts[i] > 0) {
+        for (int k = 0; k < tagCounts[i]; k++) {
+          if (k != 0) {
+            appendChar('\t');
+          }
+          appendString(tags.value(tagLists[i][k]));
+        }
+      } else {
+        appendString(strings[i]);
+      }
+      clearSlot(i);
+    }
+    appendChar('\n');
+    out.write(line, 0, lineLength);
+  }
+
+  /**
+   * Writes the current row like {@link #print(PrintWriter)}, in the encoding of the tag dictionary,
+   * and clears the fields. Tags are copied from the dictionary without encoding them again.
+   */
+  public void print(OutputStream out) throws IOException {
+    if (encodedLine == null) {
+      encodedLine = new EncodedLine(tags.encoding());
+      tabBytes = "\t".getBytes(tags.encoding());
+      newlineBytes = "\n".getBytes(tags.encoding());
+      nullBytes = NULL_STRING.getBytes(tags.encoding());
+    }
+    if (separatorBytes == null) {
+      separatorBytes = fieldSeparator.getBytes(tags.encoding());
+    }
+
+    EncodedLine encoded = encodedLine;
+    encoded.clear();
+    encoded.append(id);
+    encoded.append(tabBytes);
+    for (int i = 0; i < strings.length; i++) {
+      if (i != 0) {
+        encoded.append(separatorBytes);
+      }
+      if (tagCounts[i] > 0) {
+        for (int k = 0; k < tagCounts[i]; k++) {
+          if (k != 0) {
+            encoded.append(tabBytes);
+          }
+          encoded.append(tags.bytes(tagLists[i][k]));
+        }
+      } else if (strings[i] != null) {
+        encoded.append(strings[i]);
+      } else {
+        encoded.append(nullBytes);
+      }
+      clearSlot(i);
+    }
+    encoded.append(newlineBytes);
+    encoded.writeTo(out);
+  }
+
+  private String slotString(int slot) {
+    if (tagCounts[slot] == 0) {
+      return strings[slot];
+    }
+
+    StringBuilder joined = new StringBuilder(tags.value(tagLists[slot][0]));
+    for (int k = 1; k < tagCounts[slot]; k++) {
+      joined.append('\t').append(tags.value(tagLists[slot][k]));
+    }
+    return joined.toString();
+  }
+
+  private void clearSlot(int slot) {
+    strings[slot] = null;
+    tagCounts[slot] = 0;
+  }
+
+  /**
+   * Adds the current row to a binary columnar document instead of printing it, and clears the fields.
+   */
+  void store(ColumnarConllEncoder encoder) {
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = slotString(i);
+      tagCounts[i] = 0;
+    }
+    encoder.addRow(strings);
+    Arrays.fill(strings, null);
+  }
+
+  private void appendChar(char c) {
+    ensureCapacity(1);
+    line[lineLength++] = c;
+  }
+
+  private void appendString(String value) {
+    if (value == null) {
+      // keep the output of the former String.valueOf based joining
+      ensureCapacity(NULL_CHARS.length);
+      System.arraycopy(NULL_CHARS, 0, line, lineLength, NULL_CHARS.length);
+      lineLength += NULL_CHARS.length;
+      return;
+    }
+
+    int length = value.length();
+    ensureCapacity(length);
+    value.getChars(0, length, line, lineLength);
+    lineLength += length;
+  }
+
+  private void appendInt(int value) {
+    long v = value;
+    if (v < 0) {
+      appendChar('-');
+      v = -v;
+    }
+
+    int digits = 1;
+    for (long t = v; t >= 10; t /= 10) {
+      digits++;
+    }
+
+    ensureCapacity(digits);
+    for (int i = lineLength + digits - 1; i >= lineLength; i--) {
+      line[i] = (char) ('0' + v % 10);
+      v /= 10;
+    }
+    lineLength += digits;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (lineLength + extra > line.length) {
+      line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + extra));
     }
   }
 
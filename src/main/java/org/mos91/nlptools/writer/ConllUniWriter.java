@@ -1,16 +1,17 @@
 package org.mos91.nlptools.writer;
 
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 import de.tudarmstadt.ukp.dkpro.core.api.io.JCasFileWriter_ImplBase;
 import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.morph.MorphologicalFeatures;
 import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS;
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
 import de.tudarmstadt.ukp.dkpro.core.api.parameter.ComponentParameters;
-import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.resources.CompressionMethod;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
 import de.tudarmstadt.ukp.dkpro.core.api.semantics.type.SemanticArgument;
 import de.tudarmstadt.ukp.dkpro.core.api.semantics.type.SemanticPredicate;
 import de.tudarmstadt.ukp.dkpro.core.api.syntax.type.dependency.Dependency;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.uima.UimaContext;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
@@ -18,24 +19,36 @@ import org.apache.uima.fit.descriptor.TypeCapability;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.jcas.cas.FSArray;
 import org.apache.uima.resource.ResourceInitializationException;
-
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import org.mos91.nlptools.metrics.PipelineMetrics;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
 
 import static org.apache.commons.io.IOUtils.closeQuietly;
-import static org.apache.uima.fit.util.JCasUtil.indexCovered;
-import static org.apache.uima.fit.util.JCasUtil.select;
-import static org.apache.uima.fit.util.JCasUtil.selectCovered;
 
 /**
  * @author OMeleshin.
@@ -52,7 +65,7 @@ import static org.apache.uima.fit.util.JCasUtil.selectCovered;
   "de.tudarmstadt.ukp.dkpro.core.api.semantics.type.SemanticArgument"})
 public class ConllUniWriter extends JCasFileWriter_ImplBase {
 
-  private static final String UNUSED = "_";
+  static final String UNUSED = "_";
   private static final int UNUSED_INT = -1;
 
   public static final String DEFAULT_CONLL2009_ROW_FORMAT = "${form}, ${lemma}, ${plemma}, ${pos}, ${ppos}, "
@@ -67,7 +80,7 @@ public class ConllUniWriter extends JCasFileWriter_ImplBase {
   private String filenameSuffix;
 
   public static final String PARAM_INCLUDE_HEADER = "includeHeader";
-  @ConfigurationParameter(name = PARAM_INCLUDE_HEADER, mandatory = true, defaultValue = "")
+  @ConfigurationParameter(name = PARAM_INCLUDE_HEADER, mandatory = true, defaultValue = "true")
   private boolean includeHeader;
 
   public static final String PARAM_ROW_FORMAT = "rowFormat";
@@ -78,8 +91,164 @@ public class ConllUniWriter extends JCasFileWriter_ImplBase {
   @ConfigurationParameter(name = FIELD_SEPARATOR, mandatory = true, defaultValue = "\t")
   private String fieldSeparator;
 
+  /**
+   * Render documents into pooled buffers and write them to disk on a dedicated I/O thread. Not
+   * supported together with compression, zip or singular targets.
+   */
+  public static final String PARAM_ASYNC_WRITE = "asyncWrite";
+  @ConfigurationParameter(name = PARAM_ASYNC_WRITE, mandatory = true, defaultValue = "false")
+  private boolean asyncWrite;
+
+  /**
+   * Size in bytes of every buffer in asynchronous write mode.
+   */
+  public static final String PARAM_WRITE_BUFFER_SIZE = "writeBufferSize";
+  @ConfigurationParameter(name = PARAM_WRITE_BUFFER_SIZE, mandatory = true, defaultValue = "1048576")
+  private int writeBufferSize;
+
+  /**
+   * Number of buffers in asynchronous write mode. Writing blocks once all of them wait for the disk.
+   */
+  public static final String PARAM_WRITE_BUFFER_COUNT = "writeBufferCount";
+  @ConfigurationParameter(name = PARAM_WRITE_BUFFER_COUNT, mandatory = true, defaultValue = "8")
+  private int writeBufferCount;
+
+  /**
+   * Append all documents to a rolling set of shard files in the target location instead of writing one
+   * file per document. The compression parameter then applies to every document block, and a sidecar
+   * index maps each document to its shard, offset and length. See {@link ShardedOutput}.
+   */
+  public static final String PARAM_SHARDED_OUTPUT = "shardedOutput";
+  @ConfigurationParameter(name = PARAM_SHARDED_OUTPUT, mandatory = true, defaultValue = "false")
+  private boolean shardedOutput;
+
+  public static final String PARAM_SHARD_NAME = "shardName";
+  @ConfigurationParameter(name = PARAM_SHARD_NAME, mandatory = true, defaultValue = "corpus")
+  private String shardName;
+
+  public static final String PARAM_MAX_SHARD_MEGABYTES = "maxShardMegabytes";
+  @ConfigurationParameter(name = PARAM_MAX_SHARD_MEGABYTES, mandatory = true, defaultValue = "256")
+  private int maxShardMegabytes;
+
+  /**
+   * Maximum number of documents per shard, 0 for no limit.
+   */
+  public static final String PARAM_MAX_SHARD_DOCUMENTS = "maxShardDocuments";
+  @ConfigurationParameter(name = PARAM_MAX_SHARD_DOCUMENTS, mandatory = true, defaultValue = "0")
+  private int maxShardDocuments;
+
+  /**
+   * Write the binary columnar format of {@link ColumnarConllEncoder} instead of text, with the columns
+   * of the row format. Header, field separator and encoding do not apply; the filename suffix should
+   * be changed accordingly. Read the files with {@code org.mos91.nlptools.reader.ColumnarConllReader}.
+   */
+  public static final String PARAM_BINARY_OUTPUT = "binaryOutput";
+  @ConfigurationParameter(name = PARAM_BINARY_OUTPUT, mandatory = true, defaultValue = "false")
+  private boolean binaryOutput;
+
+  /**
+   * Append consecutive CASes of the same document, such as the windows of
+   * {@code org.mos91.nlptools.reader.WindowedTextReader}, to one file. The file is closed after the CAS
+   * flagged as last segment in its {@link DocumentMetaData}. Not supported together with sharded or
+   * binary output.
+   */
+  public static final String PARAM_APPEND_SEGMENTS = "appendSegments";
+  @ConfigurationParameter(name = PARAM_APPEND_SEGMENTS, mandatory = true, defaultValue = "false")
+  private boolean appendSegments;
+
+  /**
+   * Directory of a {@link ResultCache} that receives every written document, keyed by its source as
+   * named in the {@link DocumentMetaData}. Not supported together with sharded output, asynchronous
+   * write or singular targets.
+   */
+  public static final String PARAM_RESULT_CACHE = "resultCache";
+  @ConfigurationParameter(name = PARAM_RESULT_CACHE, mandatory = false)
+  private String resultCacheLocation;
+
+  /**
+   * Digest of everything that determines the output besides the source document, see
+   * {@link ResultCache#fingerprint}.
+   */
+  public static final String PARAM_RESULT_CACHE_FINGERPRINT = "resultCacheFingerprint";
+  @ConfigurationParameter(name = PARAM_RESULT_CACHE_FINGERPRINT, mandatory = true, defaultValue = "")
+  private String resultCacheFingerprint;
+
+  /**
+   * Threads that render the sentences of a document in blocks, each block into a buffer of its own, for
+   * documents of at least {@code 2 * }{@value #RENDER_BLOCK_SENTENCES} sentences; 1 renders them one
+   * after the other. The output is the same either way. Only applies to text output of whole documents.
+   */
+  public static final String PARAM_RENDER_THREADS = "renderThreads";
+  @ConfigurationParameter(name = PARAM_RENDER_THREADS, mandatory = true, defaultValue = "1")
+  private int renderThreads;
+
+  /**
+   * Fewest sentences in a render block; smaller blocks cost more in buffers and tasks than they gain.
+   */
+  static final int RENDER_BLOCK_SENTENCES = 64;
+
+  /**
+   * Blocks per render thread, so that a block of long sentences does not leave the other threads idle.
+   */
+  private static final int RENDER_BLOCKS_PER_THREAD = 4;
+
+  private ForkJoinPool renderPool;
+
+  /**
+   * Working sets of the render blocks, reused from block to block; one per running block.
+   */
+  private final Queue<RenderState> renderStates = new ConcurrentLinkedQueue<>();
+
+  private ColumnarConllEncoder columnarEncoder;
+
+  private ResultCache resultCache;
+
+  /**
+   * Open file of the document whose segments are being appended, its relative path and byte count.
+   */
+  private OutputStream segmentOut;
+
+  private String segmentPath;
+
+  private CountingOutputStream segmentCounter;
+
+  /**
+   * Cache key and target file of the document whose segments are being appended.
+   */
+  private String segmentKey;
+
+  private File segmentTarget;
+
+  private AsyncFileSink asyncSink;
+
+  private ShardedOutput shards;
+
+  private final ByteArrayOutputStream shardBlock = new ByteArrayOutputStream(1 << 16);
+
+  /**
+   * Not named {@code overwrite}: parameters are bound by field name, and such a field would hide the one
+   * of the base class from the binding.
+   */
+  private boolean overwriteTarget;
+
+  /**
+   * Whether every document goes to a file of its own, rather than into a single file or a jar.
+   */
+  private boolean perDocumentTargets;
+
   private CFormatInfo cFormatInfo;
 
+  /**
+   * POS tags, dependency types, predicate senses, semantic roles and features seen by this writer.
+   */
+  private TagDictionary tags;
+
+  private final ArgumentMatrix arguments = new ArgumentMatrix();
+
+  private byte[] headerBytes;
+
+  private byte[] lineSeparatorBytes;
+
   public String defaultConll2009Header;
 
   private static final Map<String, String> FIELD_SPECIFICATORS = Collections.unmodifiableMap(
@@ -101,19 +270,26 @@ public class ConllUniWriter extends JCasFileWriter_ImplBase {
     }
   });
 
-  private static final Map<String, Integer> DEFAULT_FIELD_IDX = ImmutableMap.<String, Integer> builder()
-      .put(ConllFieldWriter.FORM_FIELD_NAME, 0)
-      .put(ConllFieldWriter.LEMMA_FIELD_NAME, 1)
-      .put(ConllFieldWriter.PLEMMA_FIELD_NAME, 2)
-      .put(ConllFieldWriter.POS_FIELD_NAME, 3)
-      .put(ConllFieldWriter.PPOS_FIELD_NAME, 4)
-      .put(ConllFieldWriter.FEAT_FIELD_NAME, 5)
-      .put(ConllFieldWriter.HEAD_FIELD_NAME, 6)
-      .put(ConllFieldWriter.PHEAD_FIELD_NAME, 7)
-      .put(ConllFieldWriter.DEPREL_FIELD_NAME, 8)
-      .put(ConllFieldWriter.FILLPRED_FIELD_NAME, 9)
-      .put(ConllFieldWriter.PRED_FIELD_NAME, 10)
-      .put(ConllFieldWriter.APREDS_FIELD_NAME, 11).build();
+  private static final int[] DEFAULT_FIELD_SLOTS = ConllFieldWriter.newFieldSlots();
+
+  static {
+    int[] columns = {
+      ConllFieldWriter.FORM_FIELD,
+      ConllFieldWriter.LEMMA_FIELD,
+      ConllFieldWriter.PLEMMA_FIELD,
+      ConllFieldWriter.POS_FIELD,
+      ConllFieldWriter.PPOS_FIELD,
+      ConllFieldWriter.FEAT_FIELD,
+      ConllFieldWriter.HEAD_FIELD,
+      ConllFieldWriter.PHEAD_FIELD,
+      ConllFieldWriter.DEPREL_FIELD,
+      ConllFieldWriter.FILLPRED_FIELD,
+      ConllFieldWriter.PRED_FIELD,
+      ConllFieldWriter.APREDS_FIELD};
+    for (int i = 0; i < columns.length; i++) {
+      DEFAULT_FIELD_SLOTS[columns[i]] = i;
+    }
+  }
 
   @Override
   public void initialize(UimaContext context) throws ResourceInitializationException {
@@ -127,7 +303,7 @@ public class ConllUniWriter extends JCasFileWriter_ImplBase {
       cFormatInfo = new CFormatInfo();
       cFormatInfo.formatValue =
         FIELD_SPECIFICATORS.values().stream().collect(Collectors.joining("\t")).concat("\n");
-      cFormatInfo.fieldIdxs = DEFAULT_FIELD_IDX;
+      cFormatInfo.fieldSlots = DEFAULT_FIELD_SLOTS;
 
       Set<String> headerFields = Sets.newLinkedHashSet();
       headerFields.add("ID");
@@ -142,122 +318,467 @@ public class ConllUniWriter extends JCasFileWriter_ImplBase {
         throw new ResourceInitializationException(e);
       }
     }
+
+    Charset charset;
+    try {
+      charset = Charset.forName(encoding);
+    } catch (IllegalArgumentException e) {
+      throw new ResourceInitializationException(e);
+    }
+    if ("__".getBytes(charset).length != 2 * "_".getBytes(charset).length) {
+      // fields are encoded one by one, so every one of them would get a byte order mark
+      throw new ResourceInitializationException(new IllegalArgumentException(
+        "Encoding [" + encoding + "] is not supported, use one without byte order mark"));
+    }
+    tags = new TagDictionary(charset, TagDictionary.DEFAULT_CAPACITY);
+    headerBytes = cFormatInfo.headerValue.getBytes(charset);
+    lineSeparatorBytes = System.lineSeparator().getBytes(charset);
+
+    if (binaryOutput) {
+      columnarEncoder = new ColumnarConllEncoder(cFormatInfo.fieldSlots);
+    }
+    if (renderThreads < 1) {
+      throw new ResourceInitializationException(new IllegalArgumentException(
+        "renderThreads must be positive, got " + renderThreads));
+    }
+    if (renderThreads > 1 && !binaryOutput) {
+      renderPool = new ForkJoinPool(renderThreads);
+    }
+
+    boolean singularTarget = Boolean.TRUE.equals(context.getConfigParameterValue(PARAM_SINGULAR_TARGET));
+    overwriteTarget = Boolean.TRUE.equals(context.getConfigParameterValue(PARAM_OVERWRITE));
+    perDocumentTargets = !singularTarget && getTargetLocation() != null
+      && !getTargetLocation().startsWith(JAR_PREFIX);
+    if (shardedOutput && (asyncWrite || singularTarget || getTargetLocation().startsWith(JAR_PREFIX))) {
+      throw new ResourceInitializationException(new IllegalArgumentException(
+        "Sharded output needs a target directory and cannot be combined with asynchronous write"));
+    }
+
+    if (appendSegments && (shardedOutput || binaryOutput)) {
+      throw new ResourceInitializationException(new IllegalArgumentException(
+        "Appending segments is not supported together with sharded or binary output"));
+    }
+
+    if (resultCacheLocation != null) {
+      if (shardedOutput || asyncWrite || singularTarget || getTargetLocation().startsWith(JAR_PREFIX)) {
+        throw new ResourceInitializationException(new IllegalArgumentException(
+          "The result cache supports plain per-document files only"));
+      }
+      resultCache = new ResultCache(new File(resultCacheLocation), resultCacheFingerprint);
+    }
+
+    if (asyncWrite) {
+      if (getCompressionMethod() != CompressionMethod.NONE || singularTarget
+        || getTargetLocation().startsWith(JAR_PREFIX)) {
+        throw new ResourceInitializationException(new IllegalArgumentException(
+          "Asynchronous write supports plain per-document files only"));
+      }
+      asyncSink = new AsyncFileSink(getClass().getSimpleName() + "-io", writeBufferSize, writeBufferCount);
+    }
   }
 
   @Override
   public void process(JCas aJCas) throws AnalysisEngineProcessException {
-    PrintWriter out = null;
     try {
-      out = new PrintWriter(new OutputStreamWriter(getOutputStream(aJCas, filenameSuffix),
-        encoding));
-      convert(aJCas, out);
+      if (shardedOutput) {
+        appendToShard(aJCas);
+        return;
+      }
+      if (appendSegments) {
+        appendSegment(aJCas);
+        return;
+      }
+
+      String cacheKey = sourceKey(aJCas);
+      File target = cacheKey != null ? targetFile(aJCas) : null;
+
+      CountingOutputStream counter = new CountingOutputStream(openOutputStream(aJCas));
+      try (OutputStream out = new BufferedOutputStream(counter, 1 << 13)) {
+        render(aJCas, out);
+      }
+      PipelineMetrics.get().addBytesOut(counter.getByteCount());
+
+      if (cacheKey != null) {
+        resultCache.store(cacheKey, target);
+      }
     }
     catch (Exception e) {
       throw new AnalysisEngineProcessException(e);
     }
-    finally {
-      closeQuietly(out);
+  }
+
+  private void render(JCas aJCas, OutputStream out) throws IOException {
+    if (columnarEncoder != null) {
+      convert(aJCas, null, columnarEncoder);
+      columnarEncoder.writeTo(out);
+    } else {
+      convert(aJCas, out);
     }
   }
 
-  private void convert(JCas jCas, PrintWriter out) {
-    Map<Token, Collection<SemanticPredicate>> predIdx = indexCovered(jCas, Token.class,
-      SemanticPredicate.class);
-    Map<SemanticArgument, Collection<Token>> argIdx = indexCovered(jCas,
-      SemanticArgument.class, Token.class);
+  private void appendSegment(JCas aJCas) throws IOException {
+    String path = getRelativePath(aJCas);
+    if (segmentOut != null && !path.equals(segmentPath)) {
+      getLogger().warn("Last segment of [" + segmentPath + "] is missing, closing it before [" + path + "]");
+      closeSegment();
+    }
 
-    ConllFieldWriter conllFieldWriter = new ConllFieldWriter(cFormatInfo.formatValue, cFormatInfo.fieldIdxs);
-    conllFieldWriter.setFieldSeparator(fieldSeparator);
+    try {
+      if (segmentOut == null) {
+        segmentKey = sourceKey(aJCas);
+        segmentTarget = segmentKey != null ? targetFile(aJCas) : null;
+        segmentCounter = new CountingOutputStream(openOutputStream(aJCas));
+        segmentOut = new BufferedOutputStream(segmentCounter, 1 << 13);
+        segmentPath = path;
+      }
+      convert(aJCas, segmentOut);
+    } catch (IOException | RuntimeException e) {
+      closeQuietly(segmentOut);
+      segmentOut = null;
+      throw e;
+    }
 
-    select(jCas, Sentence.class).stream().forEachOrdered(sentence -> {
-      HashMap<Token, Row> ctokens = new LinkedHashMap<>();
+    if (DocumentMetaData.get(aJCas).getIsLastSegment()) {
+      String key = segmentKey;
+      File target = segmentTarget;
+      closeSegment();
+      // Only complete documents are cached
+      if (key != null) {
+        resultCache.store(key, target);
+      }
+    }
+  }
 
-      // Tokens
-      List<Token> tokens = selectCovered(Token.class, sentence);
+  private void closeSegment() throws IOException {
+    OutputStream out = segmentOut;
+    segmentOut = null;
+    segmentPath = null;
+    segmentKey = null;
+    segmentTarget = null;
+    if (out != null) {
+      out.close();
+      PipelineMetrics.get().addBytesOut(segmentCounter.getByteCount());
+    }
+  }
 
-      // Check if we should try to include the FEATS in output
-      List<MorphologicalFeatures> morphology = selectCovered(MorphologicalFeatures.class, sentence);
-      boolean useFeats = tokens.size() == morphology.size();
+  private void appendToShard(JCas aJCas) throws IOException {
+    if (shards == null) {
+      shards = ShardedOutput.acquire(new File(getTargetLocation()), shardName,
+        filenameSuffix + getCompressionMethod().getExtension(), maxShardMegabytes * 1024L * 1024L,
+        maxShardDocuments, overwriteTarget);
+    }
 
-      List<SemanticPredicate> preds = selectCovered(SemanticPredicate.class, sentence);
+    shardBlock.reset();
+    try (OutputStream out = ShardedOutput.compress(shardBlock, getCompressionMethod())) {
+      render(aJCas, out);
+    }
+    shards.append(getRelativePath(aJCas), shardBlock);
+    PipelineMetrics.get().addBytesOut(shardBlock.size());
+  }
 
-      for (int i = 0; i < tokens.size(); i++) {
-        Row row = new Row();
-        row.id = i+1;
-        row.token = tokens.get(i);
-        row.args = new SemanticArgument[preds.size()];
-        if (useFeats) {
-          row.feats = morphology.get(i);
-        }
+  /**
+   * @return the cache key of the document, or null without cache or if its source cannot be read.
+   */
+  private String sourceKey(JCas aJCas) throws IOException {
+    if (resultCache == null) {
+      return null;
+    }
+    String uri = DocumentMetaData.get(aJCas).getDocumentUri();
+    if (uri == null) {
+      return null;
+    }
+    try (InputStream in = new URL(uri).openStream()) {
+      return resultCache.key(in);
+    } catch (MalformedURLException | FileNotFoundException e) {
+      getLogger().warn("Source [" + uri + "] not readable, not caching its output");
+      return null;
+    }
+  }
 
-        // If there are multiple semantic predicates for the current token, then
-        // we keep only the first
-        Collection<SemanticPredicate> predsForToken = predIdx.get(row.token);
-        if (predsForToken != null && !predsForToken.isEmpty()) {
-          row.pred = predsForToken.iterator().next();
-        }
-        ctokens.put(row.token, row);
+  /**
+   * @return the file that {@link #openOutputStream} writes for the document, or null if there is none
+   *         of its own.
+   */
+  private File targetFile(JCas aJCas) {
+    if (!perDocumentTargets) {
+      return null;
+    }
+    return new File(getTargetLocation(),
+      getRelativePath(aJCas) + filenameSuffix + getCompressionMethod().getExtension());
+  }
+
+  private OutputStream openOutputStream(JCas aJCas) throws IOException {
+    File target = targetFile(aJCas);
+    if (overwriteTarget && target != null) {
+      // Replaced rather than truncated: the file may be linked from a result cache entry, also of
+      // another configuration, which must keep its content
+      Files.deleteIfExists(target.toPath());
+    }
+    if (asyncSink == null) {
+      return getOutputStream(aJCas, filenameSuffix);
+    }
+
+    if (!overwriteTarget && target.exists()) {
+      throw new IOException("Target file [" + target + "] already exists and overwriting not enabled.");
+    }
+    return asyncSink.open(target);
+  }
+
+  @Override
+  public void collectionProcessComplete() throws AnalysisEngineProcessException {
+    try {
+      closeSegment();
+    } catch (IOException e) {
+      throw new AnalysisEngineProcessException(e);
+    }
+    if (asyncSink != null) {
+      try {
+        asyncSink.flush();
+      } catch (IOException e) {
+        throw new AnalysisEngineProcessException(e);
+      }
+    }
+    releaseShards();
+    super.collectionProcessComplete();
+  }
+
+  @Override
+  public void destroy() {
+    closeQuietly(segmentOut);
+    segmentOut = null;
+    if (renderPool != null) {
+      renderPool.shutdownNow();
+      renderPool = null;
+    }
+    if (asyncSink != null) {
+      try {
+        asyncSink.close();
+      } catch (IOException e) {
+        getLogger().error("Asynchronous write failed", e);
+      }
+      asyncSink = null;
+    }
+    try {
+      releaseShards();
+    } catch (AnalysisEngineProcessException e) {
+      getLogger().error("Unable to close shards", e);
+    }
+    super.destroy();
+  }
+
+  private void releaseShards() throws AnalysisEngineProcessException {
+    if (shards != null) {
+      try {
+        shards.release();
+      } catch (IOException e) {
+        throw new AnalysisEngineProcessException(e);
+      } finally {
+        shards = null;
       }
+    }
+  }
 
-      // Dependencies
-      selectCovered(Dependency.class, sentence).stream().forEachOrdered(rel -> ctokens.get(rel.getDependent()).deprel = rel);
+  /**
+   * Renders the document as text without a target file, split into parts: the sentences that begin
+   * at or after {@code partBegins[i]} and before {@code partBegins[i + 1]} go to {@code parts[i]}, and
+   * any before {@code partBegins[0]} to {@code parts[0]}. This way several texts annotated in one CAS
+   * are rendered separately. The writer must have been initialized; binary output is not supported.
+   */
+  public void render(JCas jCas, int[] partBegins, OutputStream[] parts) throws IOException {
+    if (columnarEncoder != null) {
+      throw new IllegalStateException("Rendering into parts is not supported in binary output mode");
+    }
+    if (partBegins.length != parts.length || parts.length == 0) {
+      throw new IllegalArgumentException("Expected one begin offset per part");
+    }
+    convert(jCas, partBegins, parts, null);
+  }
 
-      // Semantic arguments
-      for (int p = 0; p < preds.size(); p++) {
-        FSArray args = preds.get(p).getArguments();
-        for (SemanticArgument arg : select(args, SemanticArgument.class)) {
-          for (Token t : argIdx.get(arg)) {
-            Row row = ctokens.get(t);
-            row.args[p] = arg;
+  void convert(JCas jCas, OutputStream out) throws IOException {
+    convert(jCas, null, new OutputStream[] { out }, null);
+  }
+
+  private void convert(JCas jCas, OutputStream out, ColumnarConllEncoder columns) throws IOException {
+    convert(jCas, null, new OutputStream[] { out }, columns);
+  }
+
+  /**
+   * Renders the document as text into {@code parts}, see {@link #render(JCas, int[], OutputStream[])},
+   * or into {@code columns} if it is not null. Without {@code partBegins}, all goes to the first part.
+   */
+  private void convert(JCas jCas, int[] partBegins, OutputStream[] parts, ColumnarConllEncoder columns)
+    throws IOException {
+    if (columns != null) {
+      // drop whatever a failed document left behind
+      columns.reset();
+    }
+
+    ConllFieldWriter conllFieldWriter = newFieldWriter(tags);
+    UsedLayers used = new UsedLayers(conllFieldWriter);
+    LayerIndex layers = new LayerIndex(jCas, used.morphology, used.deps, used.pred || used.args);
+
+    if (renderPool != null && columns == null && partBegins == null
+      && layers.sentenceCount() >= 2 * RENDER_BLOCK_SENTENCES) {
+      convertInBlocks(layers, used, parts[0]);
+      return;
+    }
+
+    OutputStream out = parts[0];
+    int part = 0;
+    for (int s = 0; s < layers.sentenceCount(); s++) {
+      if (partBegins != null) {
+        while (part + 1 < partBegins.length && partBegins[part + 1] <= layers.sentenceBegin(s)) {
+          part++;
+        }
+        out = parts[part];
+      }
+      convertSentence(layers, s, used, conllFieldWriter, arguments, out, columns);
+    }
+  }
+
+  /**
+   * Renders the sentences in blocks on the render pool, each block into a buffer of its own with a
+   * field writer, tag dictionary and argument matrix of its own, and writes the buffers in order.
+   */
+  private void convertInBlocks(LayerIndex layers, UsedLayers used, OutputStream out) throws IOException {
+    int sentenceCount = layers.sentenceCount();
+    int blockSize = Math.max(RENDER_BLOCK_SENTENCES,
+      (sentenceCount + RENDER_BLOCKS_PER_THREAD * renderThreads - 1) / (RENDER_BLOCKS_PER_THREAD * renderThreads));
+    List<ForkJoinTask<ByteArrayOutputStream>> blocks = new ArrayList<>();
+    for (int begin = 0; begin < sentenceCount; begin += blockSize) {
+      int blockBegin = begin;
+      int blockEnd = Math.min(sentenceCount, begin + blockSize);
+      blocks.add(renderPool.submit(() -> {
+        RenderState state = renderStates.poll();
+        if (state == null) {
+          state = new RenderState(new TagDictionary(tags.encoding(), TagDictionary.DEFAULT_CAPACITY));
+        }
+        try {
+          ConllFieldWriter blockFieldWriter = newFieldWriter(state.tags);
+          ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 13);
+          for (int s = blockBegin; s < blockEnd; s++) {
+            convertSentence(layers, s, used, blockFieldWriter, state.arguments, buffer, null);
           }
+          return buffer;
+        } finally {
+          renderStates.add(state);
         }
+      }));
+    }
+
+    try {
+      for (ForkJoinTask<ByteArrayOutputStream> block : blocks) {
+        block.get().writeTo(out);
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while rendering");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      for (ForkJoinTask<ByteArrayOutputStream> block : blocks) {
+        block.cancel(false);
+      }
+    }
+  }
 
-      out.print(cFormatInfo.headerValue);
-      // Write sentence in CONLL 2009 format
-      ctokens.values().stream().forEachOrdered(row -> {
-        int id = row.id;
-        conllFieldWriter.putId(id);
+  private ConllFieldWriter newFieldWriter(TagDictionary dictionary) {
+    ConllFieldWriter conllFieldWriter = new ConllFieldWriter(cFormatInfo.formatValue, cFormatInfo.fieldSlots,
+      dictionary);
+    conllFieldWriter.setFieldSeparator(fieldSeparator);
+    return conllFieldWriter;
+  }
 
-        String form;
-        if (conllFieldWriter.hasForm()) {
-          form = row.token.getCoveredText();
-          conllFieldWriter.putForm(form);
+  private void convertSentence(LayerIndex layers, int s, UsedLayers used, ConllFieldWriter conllFieldWriter,
+                               ArgumentMatrix arguments, OutputStream out, ColumnarConllEncoder columns)
+    throws IOException {
+    int rowCount = layers.rowCount(s);
+    int predCount = used.args ? layers.predCount(s) : 0;
+
+    // Semantic arguments; rows are the tokens of the sentence in order, see LayerIndex#tokenAt
+    arguments.reset(rowCount, predCount);
+    for (int p = 0; p < predCount; p++) {
+      FSArray args = layers.sentencePred(s, p).getArguments();
+      for (int k = 0; args != null && k < args.size(); k++) {
+        if (!(args.get(k) instanceof SemanticArgument)) {
+          continue;
         }
+        SemanticArgument arg = (SemanticArgument) args.get(k);
+        int argument = arguments.add(arg);
+        for (int t = layers.firstTokenAt(arg.getBegin());
+             t < layers.tokenCount() && layers.tokenBegin(t) < arg.getEnd(); t++) {
+          if (layers.tokenEnd(t) <= arg.getEnd() && layers.sentenceOf(t) == s) {
+            arguments.set(layers.rowOf(t), p, argument);
+          }
+        }
+      }
+    }
 
+    if (includeHeader && columns == null) {
+      out.write(headerBytes);
+    }
+    // Write sentence in CONLL 2009 format
+    for (int i = 0; i < rowCount; i++) {
+      int t = layers.tokenAt(s, i);
+      Token token = layers.token(t);
+      int id = i + 1;
+      conllFieldWriter.putId(id);
+
+      if (used.form) {
+        conllFieldWriter.putForm(token.getCoveredText());
+      }
+
+      if (used.lemma) {
         String lemma = UNUSED;
-        if ((row.token.getLemma() != null)) {
-          lemma = row.token.getLemma().getValue();
+        if ((token.getLemma() != null)) {
+          lemma = token.getLemma().getValue();
         }
         conllFieldWriter.putLemma(lemma);
         conllFieldWriter.putPlemma(lemma);
+      }
 
+      if (used.pos) {
         String pos = UNUSED;
-        if ((row.token.getPos() != null)) {
-          POS posAnno = row.token.getPos();
+        if ((token.getPos() != null)) {
+          POS posAnno = token.getPos();
           pos = posAnno.getPosValue();
         }
-        conllFieldWriter.putPos(pos);
-        conllFieldWriter.putPPos(pos);
+        conllFieldWriter.putTag(ConllFieldWriter.POS_FIELD, pos);
+        conllFieldWriter.putTag(ConllFieldWriter.PPOS_FIELD, pos);
+      }
 
+      if (used.morphology) {
+        MorphologicalFeatures feats = layers.feats(t);
         String feat = UNUSED;
-        if ((row.feats != null)) {
-          feat = row.feats.getValue();
+        if ((feats != null)) {
+          feat = feats.getValue();
         }
-        conllFieldWriter.putFeat(feat);
-        conllFieldWriter.putPFeat(feat);
+        conllFieldWriter.putTag(ConllFieldWriter.FEAT_FIELD, feat);
+        conllFieldWriter.putTag(ConllFieldWriter.PFEAT_FIELD, feat);
+      }
 
+      if (used.deps) {
+        Dependency dependency = layers.deprel(t);
         int headId = UNUSED_INT;
         String deprel = UNUSED;
-        if ((row.deprel != null)) {
-          deprel = row.deprel.getDependencyType();
-          headId = ctokens.get(row.deprel.getGovernor()).id;
-          if (headId == row.id) {
+        if ((dependency != null)) {
+          deprel = dependency.getDependencyType();
+          int governor = layers.ordinalOf(dependency.getGovernor());
+          if (governor != LayerIndex.NONE && layers.sentenceOf(governor) == s) {
+            headId = layers.rowOf(governor) + 1;
+          }
+          if (headId == id) {
             // ROOT dependencies may be modeled as a loop, ignore these.
             headId = 0;
           }
         }
-        conllFieldWriter.putDeprel(deprel);
+        conllFieldWriter.putTag(ConllFieldWriter.DEPREL_FIELD, deprel);
 
         String head = UNUSED;
         if (headId != UNUSED_INT) {
@@ -266,33 +787,74 @@ public class ConllUniWriter extends JCasFileWriter_ImplBase {
 
         conllFieldWriter.putHead(head);
         conllFieldWriter.putPHead(head);
-        conllFieldWriter.putPDeprel(deprel);
+        conllFieldWriter.putTag(ConllFieldWriter.PDEPREL_FIELD, deprel);
+      }
 
+      if (used.pred) {
+        SemanticPredicate predicate = layers.pred(t);
         String fillpred = UNUSED;
         String pred = UNUSED;
-        StringBuilder apreds = new StringBuilder();
-
-        if (row.pred != null) {
+        if (predicate != null) {
           fillpred = "Y";
-          pred = row.pred.getCategory();
+          pred = predicate.getCategory();
         }
 
-        conllFieldWriter.putFillpred(fillpred);
-        conllFieldWriter.putPred(pred);
+        conllFieldWriter.putTag(ConllFieldWriter.FILLPRED_FIELD, fillpred);
+        conllFieldWriter.putTag(ConllFieldWriter.PRED_FIELD, pred);
+      }
 
-        for (SemanticArgument arg : row.args) {
-          if (apreds.length() > 0) {
-            apreds.append('\t');
-          }
-          apreds.append(arg != null ? arg.getRole() : UNUSED);
+      if (used.args) {
+        if (predCount == 0) {
+          conllFieldWriter.putApreds("");
+        }
+        for (int p = 0; p < predCount; p++) {
+          SemanticArgument arg = arguments.get(i, p);
+          conllFieldWriter.addTag(ConllFieldWriter.APREDS_FIELD, arg != null ? arg.getRole() : UNUSED);
         }
-        conllFieldWriter.putApreds(apreds.toString());
+      }
 
+      if (columns != null) {
+        conllFieldWriter.store(columns);
+      } else {
         conllFieldWriter.print(out);
-      });
+      }
+    }
+
+    if (columns != null) {
+      columns.endSentence();
+    } else {
+      out.write(lineSeparatorBytes);
+    }
+  }
 
-      out.println();
-    });
+  /**
+   * Compiles a row format the way this writer does: the result holds the output column of every
+   * {@link ConllFieldWriter} field id, or -1 for fields the rows do not contain.
+   */
+  public static int[] compileFieldSlots(String rowFormat) {
+    if (rowFormat == null || rowFormat.isEmpty() || DEFAULT_CONLL2009_ROW_FORMAT.equals(rowFormat)) {
+      return DEFAULT_FIELD_SLOTS.clone();
+    }
+
+    int[] fieldSlots = ConllFieldWriter.newFieldSlots();
+    List<String> fieldNames = parseFieldNames(rowFormat);
+    for (int i = 0; i < fieldNames.size(); i++) {
+      fieldSlots[ConllFieldWriter.fieldId(fieldNames.get(i))] = i;
+    }
+    return fieldSlots;
+  }
+
+  /**
+   * @return names of the supported fields of a custom row format, in order.
+   */
+  private static List<String> parseFieldNames(String rowFormat) {
+    return Arrays.stream(rowFormat.split(","))
+      .map(t -> {
+        String fieldName = t.trim();
+        return fieldName.substring(2, fieldName.indexOf('}'));
+      })
+      .filter(FIELD_SPECIFICATORS::containsKey)
+      .collect(Collectors.toList());
   }
 
   private class CFormatInfo {
@@ -301,7 +863,10 @@ public class ConllUniWriter extends JCasFileWriter_ImplBase {
 
     private String headerValue;
 
-    private Map<String, Integer> fieldIdxs;
+    /**
+     * Output column of every field, indexed by {@link ConllFieldWriter} field id, -1 if absent.
+     */
+    private int[] fieldSlots;
   }
 
   private class CFormatCompiler implements Callable<CFormatInfo> {
@@ -314,40 +879,69 @@ public class ConllUniWriter extends JCasFileWriter_ImplBase {
 
     @Override
     public CFormatInfo call() throws Exception {
-      Map<String, Integer> fieldIdxs = new HashMap<String, Integer>();
+      int[] fieldSlots = ConllFieldWriter.newFieldSlots();
       headerBuilder.append("ID\t");
-      Arrays.stream(rowFormat.split(",")).forEachOrdered((String t) ->{
-        String fieldName = t.trim();
-        fieldName = fieldName.substring(2, fieldName.indexOf('}'));
-
-        String cformatSpec = FIELD_SPECIFICATORS.get(fieldName);
-
-        if (cformatSpec != null) {
-          if (fieldCount != 0) {
-            cformatBuilder.append(fieldSeparator);
-            headerBuilder.append(fieldSeparator);
-          }
-          cformatBuilder.append(cformatSpec);
-          headerBuilder.append(fieldName.toUpperCase());
-          fieldIdxs.put(fieldName, fieldCount++);
+      parseFieldNames(rowFormat).forEach(fieldName -> {
+        if (fieldCount != 0) {
+          cformatBuilder.append(fieldSeparator);
+          headerBuilder.append(fieldSeparator);
         }
+        cformatBuilder.append(FIELD_SPECIFICATORS.get(fieldName));
+        headerBuilder.append(fieldName.toUpperCase());
+        fieldSlots[ConllFieldWriter.fieldId(fieldName)] = fieldCount++;
       });
       headerBuilder.append("\n");
 
       CFormatInfo formatInfo = new CFormatInfo();
       formatInfo.formatValue = cformatBuilder.toString();
       formatInfo.headerValue = headerBuilder.toString();
-      formatInfo.fieldIdxs = fieldIdxs;
+      formatInfo.fieldSlots = fieldSlots;
       return formatInfo;
     }
   }
 
-  private static final class Row {
-    int id;
-    Token token;
-    MorphologicalFeatures feats;
-    Dependency deprel;
-    SemanticPredicate pred;
-    SemanticArgument[] args;
+  /**
+   * Tag dictionary and argument matrix of a render block.
+   */
+  private static final class RenderState {
+
+    private final TagDictionary tags;
+
+    private final ArgumentMatrix arguments = new ArgumentMatrix();
+
+    private RenderState(TagDictionary tags) {
+      this.tags = tags;
+    }
+  }
+
+  /**
+   * Layers that feed a column of the row format; the others are not looked at.
+   */
+  private static final class UsedLayers {
+
+    private final boolean form;
+
+    private final boolean lemma;
+
+    private final boolean pos;
+
+    private final boolean morphology;
+
+    private final boolean deps;
+
+    private final boolean pred;
+
+    private final boolean args;
+
+    private UsedLayers(ConllFieldWriter conllFieldWriter) {
+      form = conllFieldWriter.hasForm();
+      lemma = conllFieldWriter.hasLemma() || conllFieldWriter.hasPLemma();
+      pos = conllFieldWriter.hasPos() || conllFieldWriter.hasPPos();
+      morphology = conllFieldWriter.hasFeat() || conllFieldWriter.hasPFeat();
+      deps = conllFieldWriter.hasHead() || conllFieldWriter.hasPHead()
+        || conllFieldWriter.hasDeprel() || conllFieldWriter.hasPDeprel();
+      pred = conllFieldWriter.hasFillpred() || conllFieldWriter.hasPred();
+      args = conllFieldWriter.hasApreds();
+    }
   }
 }
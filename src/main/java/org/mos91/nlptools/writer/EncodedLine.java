@@ -0,0 +1,169 @@
+package org.mos91.nlptools.writer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reused byte buffer in which a line of output is assembled in the target encoding, and handed to
+ * the stream in one call.
+ *
+ * UTF-8 is encoded inline; other charsets go through a {@link CharsetEncoder}. Unmappable and
+ * malformed characters are replaced, as an {@link java.io.OutputStreamWriter} does.
+ *
+ * This class is not thread-safe.
+ */
+final class EncodedLine {
+
+  private static final byte REPLACEMENT = '?';
+
+  private final boolean utf8;
+
+  /**
+   * Whether digits and the minus sign are single ASCII bytes in the encoding.
+   */
+  private final boolean asciiDigits;
+
+  private final CharsetEncoder encoder;
+
+  private byte[] bytes = new byte[256];
+
+  private int length;
+
+  EncodedLine(Charset encoding) {
+    utf8 = StandardCharsets.UTF_8.equals(encoding);
+    asciiDigits = Arrays.equals("-0123456789".getBytes(encoding), "-0123456789".getBytes(StandardCharsets.US_ASCII));
+    encoder = encoding.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  void clear() {
+    length = 0;
+  }
+
+  void append(byte[] value) {
+    ensureCapacity(value.length);
+    if (value.length <= 8) {
+      // tags and separators are short, a loop beats the arraycopy call
+      byte[] b = bytes;
+      int n = length;
+      for (byte v : value) {
+        b[n++] = v;
+      }
+      length = n;
+    } else {
+      System.arraycopy(value, 0, bytes, length, value.length);
+      length += value.length;
+    }
+  }
+
+  void append(String value) {
+    if (utf8) {
+      appendUtf8(value);
+    } else {
+      appendEncoded(value);
+    }
+  }
+
+  void append(int value) {
+    if (!asciiDigits) {
+      append(Integer.toString(value));
+      return;
+    }
+
+    long v = value;
+    if (v < 0) {
+      ensureCapacity(1);
+      bytes[length++] = '-';
+      v = -v;
+    }
+
+    int digits = 1;
+    for (long t = v; t >= 10; t /= 10) {
+      digits++;
+    }
+
+    ensureCapacity(digits);
+    for (int i = length + digits - 1; i >= length; i--) {
+      bytes[i] = (byte) ('0' + v % 10);
+      v /= 10;
+    }
+    length += digits;
+  }
+
+  void writeTo(OutputStream out) throws IOException {
+    out.write(bytes, 0, length);
+  }
+
+  private void appendUtf8(String value) {
+    int chars = value.length();
+    // at most 3 bytes per char; surrogate pairs take 4 bytes for 2 chars
+    ensureCapacity(chars * 3);
+    byte[] b = bytes;
+    int n = length;
+    int i = 0;
+    for (char c; i < chars && (c = value.charAt(i)) < 0x80; i++) {
+      b[n++] = (byte) c;
+    }
+    for (; i < chars; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        b[n++] = (byte) c;
+      } else if (c < 0x800) {
+        b[n++] = (byte) (0xc0 | c >> 6);
+        b[n++] = (byte) (0x80 | c & 0x3f);
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int cp = Character.toCodePoint(c, value.charAt(++i));
+          b[n++] = (byte) (0xf0 | cp >> 18);
+          b[n++] = (byte) (0x80 | cp >> 12 & 0x3f);
+          b[n++] = (byte) (0x80 | cp >> 6 & 0x3f);
+          b[n++] = (byte) (0x80 | cp & 0x3f);
+        } else {
+          b[n++] = REPLACEMENT;
+        }
+      } else {
+        b[n++] = (byte) (0xe0 | c >> 12);
+        b[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+        b[n++] = (byte) (0x80 | c & 0x3f);
+      }
+    }
+    length = n;
+  }
+
+  private void appendEncoded(String value) {
+    CharBuffer in = CharBuffer.wrap(value);
+    encoder.reset();
+    ensureCapacity((int) (value.length() * encoder.maxBytesPerChar()) + 16);
+    ByteBuffer out = ByteBuffer.wrap(bytes, length, bytes.length - length);
+    try {
+      CoderResult result = encoder.encode(in, out, true);
+      if (!result.isUnderflow()) {
+        result.throwException();
+      }
+      result = encoder.flush(out);
+      if (!result.isUnderflow()) {
+        result.throwException();
+      }
+    } catch (CharacterCodingException e) {
+      // cannot happen with replacement and a buffer of maxBytesPerChar
+      throw new IllegalStateException(e);
+    }
+    length = out.position();
+  }
+
+  private void ensureCapacity(int extra) {
+    if (length + extra > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+    }
+  }
+}
@@ -0,0 +1,317 @@
+package org.mos91.nlptools.writer;
+
+import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.morph.MorphologicalFeatures;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import de.tudarmstadt.ukp.dkpro.core.api.semantics.type.SemanticPredicate;
+import de.tudarmstadt.ukp.dkpro.core.api.syntax.type.dependency.Dependency;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.jcas.tcas.Annotation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.apache.uima.fit.util.JCasUtil.select;
+
+/**
+ * Groups the layers written by {@link ConllUniWriter} by sentence in a single forward pass over the
+ * annotation indexes, replacing per-sentence {@code selectCovered} and document-wide
+ * {@code indexCovered} calls.
+ *
+ * Tokens are addressed by their ordinal in the token index. A token annotation is mapped back to its
+ * ordinal by a binary search over the token begin offsets, and from there to its row in the sentence
+ * through plain int arrays, so the whole pass is linear in the document size apart from the lookups.
+ *
+ * Sentences are expected to be sorted and not to overlap, which holds for the DKPro segmenters.
+ *
+ * The index is not modified after construction, so several threads may read it, as the render blocks
+ * of {@link ConllUniWriter} do.
+ */
+final class LayerIndex {
+
+  static final int NONE = -1;
+
+  private final Token[] tokens;
+
+  private final int[] tokenBegins;
+
+  private final int[] tokenEnds;
+
+  /**
+   * Sentence of every token ordinal, {@link #NONE} for tokens outside of any sentence.
+   */
+  private final int[] tokenSentence;
+
+  /**
+   * Position of every token ordinal within its sentence.
+   */
+  private final int[] tokenRow;
+
+  private final int sentenceCount;
+
+  private final int[] sentenceBegins;
+
+  /**
+   * Token ordinals of sentence {@code s} are {@code sentenceTokens[sentenceTokenStart[s]..sentenceTokenStart[s + 1])}.
+   */
+  private final int[] sentenceTokens;
+
+  private final int[] sentenceTokenStart;
+
+  private final MorphologicalFeatures[] feats;
+
+  private final Dependency[] deprels;
+
+  private final SemanticPredicate[] tokenPreds;
+
+  private final List<SemanticPredicate> sentencePreds = new ArrayList<>();
+
+  private final int[] sentencePredStart;
+
+  LayerIndex(JCas jCas, boolean useMorphology, boolean useDeps, boolean usePreds) {
+    List<Token> tokenList = new ArrayList<>(select(jCas, Token.class));
+    int tokenCount = tokenList.size();
+    tokens = tokenList.toArray(new Token[tokenCount]);
+    tokenBegins = new int[tokenCount];
+    tokenEnds = new int[tokenCount];
+    for (int t = 0; t < tokenCount; t++) {
+      tokenBegins[t] = tokens[t].getBegin();
+      tokenEnds[t] = tokens[t].getEnd();
+    }
+
+    List<Sentence> sentences = new ArrayList<>(select(jCas, Sentence.class));
+    sentenceCount = sentences.size();
+    sentenceBegins = new int[sentenceCount];
+    tokenSentence = new int[tokenCount];
+    tokenRow = new int[tokenCount];
+    Arrays.fill(tokenSentence, NONE);
+    sentenceTokens = new int[tokenCount];
+    sentenceTokenStart = new int[sentenceCount + 1];
+    sentencePredStart = new int[sentenceCount + 1];
+    feats = useMorphology ? new MorphologicalFeatures[tokenCount] : null;
+    deprels = useDeps ? new Dependency[tokenCount] : null;
+    tokenPreds = usePreds ? new SemanticPredicate[tokenCount] : null;
+
+    Sweep<MorphologicalFeatures> morphology = useMorphology
+      ? new Sweep<>(select(jCas, MorphologicalFeatures.class)) : null;
+    Sweep<Dependency> dependencies = useDeps ? new Sweep<>(select(jCas, Dependency.class)) : null;
+    Sweep<SemanticPredicate> predicates = usePreds ? new Sweep<>(select(jCas, SemanticPredicate.class)) : null;
+    List<MorphologicalFeatures> sentenceFeats = new ArrayList<>();
+    List<Dependency> sentenceDeps = new ArrayList<>();
+
+    int next = 0;
+    int sentenceTokenCount = 0;
+    for (int s = 0; s < sentenceCount; s++) {
+      Sentence sentence = sentences.get(s);
+      int begin = sentence.getBegin();
+      int end = sentence.getEnd();
+      sentenceBegins[s] = begin;
+
+      // Tokens
+      sentenceTokenStart[s] = sentenceTokenCount;
+      while (next < tokenCount && tokenBegins[next] < begin) {
+        next++;
+      }
+      for (; next < tokenCount && tokenBegins[next] < end; next++) {
+        if (tokenEnds[next] <= end && tokenSentence[next] == NONE) {
+          tokenSentence[next] = s;
+          tokenRow[next] = sentenceTokenCount - sentenceTokenStart[s];
+          sentenceTokens[sentenceTokenCount++] = next;
+        }
+      }
+      // Zero-width tokens at the end are covered too, but left in place for a sentence that begins there;
+      // a token still belongs to one sentence only
+      for (int t = next; t < tokenCount && tokenBegins[t] == end; t++) {
+        if (tokenEnds[t] == end && tokenSentence[t] == NONE) {
+          tokenSentence[t] = s;
+          tokenRow[t] = sentenceTokenCount - sentenceTokenStart[s];
+          sentenceTokens[sentenceTokenCount++] = t;
+        }
+      }
+      int rowCount = sentenceTokenCount - sentenceTokenStart[s];
+
+      // FEATS are only used if there are exactly as many as there are tokens
+      if (morphology != null) {
+        sentenceFeats.clear();
+        morphology.collectCovered(begin, end, sentenceFeats);
+        if (sentenceFeats.size() == rowCount) {
+          for (int i = 0; i < rowCount; i++) {
+            feats[sentenceTokens[sentenceTokenStart[s] + i]] = sentenceFeats.get(i);
+          }
+        }
+      }
+
+      // Dependencies
+      if (dependencies != null) {
+        sentenceDeps.clear();
+        dependencies.collectCovered(begin, end, sentenceDeps);
+        for (Dependency rel : sentenceDeps) {
+          int dependent = ordinalOf(rel.getDependent());
+          if (dependent != NONE && tokenSentence[dependent] == s) {
+            deprels[dependent] = rel;
+          }
+        }
+      }
+
+      // Predicates; if there are multiple semantic predicates for a token, then we keep only the first
+      sentencePredStart[s] = sentencePreds.size();
+      if (predicates != null) {
+        predicates.collectCovered(begin, end, sentencePreds);
+        for (int p = sentencePredStart[s]; p < sentencePreds.size(); p++) {
+          SemanticPredicate pred = sentencePreds.get(p);
+          for (int t = lastTokenAt(pred.getBegin()); t != NONE && tokenEnds[t] >= pred.getBegin(); t--) {
+            if (tokenSentence[t] == s && tokenEnds[t] >= pred.getEnd() && tokenPreds[t] == null) {
+              tokenPreds[t] = pred;
+            }
+          }
+        }
+      }
+    }
+    sentenceTokenStart[sentenceCount] = sentenceTokenCount;
+    sentencePredStart[sentenceCount] = sentencePreds.size();
+  }
+
+  int sentenceCount() {
+    return sentenceCount;
+  }
+
+  int sentenceBegin(int sentence) {
+    return sentenceBegins[sentence];
+  }
+
+  int rowCount(int sentence) {
+    return sentenceTokenStart[sentence + 1] - sentenceTokenStart[sentence];
+  }
+
+  /**
+   * @return ordinal of the token in the given row of the sentence.
+   */
+  int tokenAt(int sentence, int row) {
+    return sentenceTokens[sentenceTokenStart[sentence] + row];
+  }
+
+  Token token(int ordinal) {
+    return tokens[ordinal];
+  }
+
+  int tokenBegin(int ordinal) {
+    return tokenBegins[ordinal];
+  }
+
+  int tokenEnd(int ordinal) {
+    return tokenEnds[ordinal];
+  }
+
+  int tokenCount() {
+    return tokens.length;
+  }
+
+  int sentenceOf(int ordinal) {
+    return tokenSentence[ordinal];
+  }
+
+  int rowOf(int ordinal) {
+    return tokenRow[ordinal];
+  }
+
+  MorphologicalFeatures feats(int ordinal) {
+    return feats != null ? feats[ordinal] : null;
+  }
+
+  Dependency deprel(int ordinal) {
+    return deprels != null ? deprels[ordinal] : null;
+  }
+
+  SemanticPredicate pred(int ordinal) {
+    return tokenPreds != null ? tokenPreds[ordinal] : null;
+  }
+
+  int predCount(int sentence) {
+    return sentencePredStart[sentence + 1] - sentencePredStart[sentence];
+  }
+
+  SemanticPredicate sentencePred(int sentence, int p) {
+    return sentencePreds.get(sentencePredStart[sentence] + p);
+  }
+
+  /**
+   * @return ordinal of the given token, or {@link #NONE} if it is not in the token index.
+   */
+  int ordinalOf(Token token) {
+    if (token == null) {
+      return NONE;
+    }
+
+    for (int t = firstTokenAt(token.getBegin()); t < tokens.length && tokenBegins[t] == token.getBegin(); t++) {
+      if (tokens[t].equals(token)) {
+        return t;
+      }
+    }
+
+    return NONE;
+  }
+
+  /**
+   * @return ordinal of the first token that begins at or after the offset.
+   */
+  int firstTokenAt(int offset) {
+    int low = 0;
+    int high = tokens.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (tokenBegins[mid] < offset) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+
+    return low;
+  }
+
+  /**
+   * @return ordinal of the last token that begins at or before the offset, {@link #NONE} if there is none.
+   */
+  private int lastTokenAt(int offset) {
+    return firstTokenAt(offset + 1) - 1;
+  }
+
+  /**
+   * Forward-only cursor over an annotation index, sorted by begin offset.
+   */
+  private static final class Sweep<T extends Annotation> {
+
+    private final List<T> annotations;
+
+    private int next;
+
+    private Sweep(Collection<T> annotations) {
+      this.annotations = new ArrayList<>(annotations);
+    }
+
+    /**
+     * Appends the annotations covered by {@code [begin, end]} to {@code covered}, as selectCovered does.
+     * Annotations that begin before {@code end} are consumed, since no later sentence can cover them.
+     * Zero-width annotations at {@code end} are kept for a sentence that begins there.
+     */
+    private void collectCovered(int begin, int end, List<T> covered) {
+      while (next < annotations.size() && annotations.get(next).getBegin() < begin) {
+        next++;
+      }
+      for (; next < annotations.size() && annotations.get(next).getBegin() < end; next++) {
+        T annotation = annotations.get(next);
+        if (annotation.getEnd() <= end) {
+          covered.add(annotation);
+        }
+      }
+      for (int i = next; i < annotations.size() && annotations.get(i).getBegin() == end; i++) {
+        T annotation = annotations.get(i);
+        if (annotation.getEnd() == end) {
+          covered.add(annotation);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package org.mos91.nlptools.writer;
+
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.XMLizable;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.TreeSet;
+
+/**
+ * On-disk cache of writer output, keyed by the SHA-256 of the pipeline configuration and the source
+ * document. A document whose key is cached need not be annotated again; its previous output is put in
+ * place by {@link #restore}.
+ *
+ * Entries are hard links to the output files where the file system allows, copies otherwise. Outputs
+ * must hence be replaced rather than modified in place; {@link ConllUniWriter} deletes a target before
+ * writing it. Every restore touches its entry, so entries unused for a while can be deleted by age.
+ * Several writers, also in different JVMs, may share a cache directory.
+ */
+public final class ResultCache {
+
+  private static final int HASH_BUFFER_SIZE = 1 << 16;
+
+  private final File directory;
+
+  private final byte[] fingerprint;
+
+  public ResultCache(File directory, String fingerprint) {
+    this.directory = directory;
+    this.fingerprint = fingerprint.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return a digest of the given reader and engine descriptions, which include the parameters such as
+   *         model variants, row format and field separator, and of the names of the jars on the class
+   *         path, which include the versions of code and models. Changes to classes outside of jars are
+   *         not covered.
+   */
+  public static String fingerprint(XMLizable... descriptions) throws ResourceInitializationException {
+    MessageDigest digest = newDigest();
+    try {
+      for (XMLizable description : descriptions) {
+        StringWriter xml = new StringWriter();
+        description.toXML(xml);
+        digest.update(xml.toString().getBytes(StandardCharsets.UTF_8));
+      }
+    } catch (SAXException | IOException e) {
+      throw new ResourceInitializationException(e);
+    }
+
+    TreeSet<String> jars = new TreeSet<>();
+    for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+      if (entry.endsWith(".jar")) {
+        jars.add(new File(entry).getName());
+      }
+    }
+    digest.update(String.join(File.pathSeparator, jars).getBytes(StandardCharsets.UTF_8));
+    return toHex(digest.digest());
+  }
+
+  /**
+   * @return the key of a source document, read from the stream to its end.
+   */
+  public String key(InputStream source) throws IOException {
+    MessageDigest digest = newDigest();
+    digest.update(fingerprint);
+    digest.update((byte) 0);
+    byte[] buffer = new byte[HASH_BUFFER_SIZE];
+    for (int read; (read = source.read(buffer)) >= 0; ) {
+      digest.update(buffer, 0, read);
+    }
+    return toHex(digest.digest());
+  }
+
+  public String key(File source) throws IOException {
+    try (InputStream in = Files.newInputStream(source.toPath())) {
+      return key(in);
+    }
+  }
+
+  /**
+   * Puts the cached output of the key in place of the target, replacing it.
+   *
+   * @return false if nothing is cached for the key.
+   */
+  public boolean restore(String key, File target) throws IOException {
+    Path entry = entry(key);
+    if (!Files.isRegularFile(entry)) {
+      return false;
+    }
+
+    Path targetPath = target.toPath();
+    Files.deleteIfExists(targetPath);
+    if (targetPath.getParent() != null) {
+      Files.createDirectories(targetPath.getParent());
+    }
+    linkOrCopy(entry, targetPath);
+    Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+    return true;
+  }
+
+  /**
+   * Caches the complete output of the key, unless the cache already has it.
+   */
+  public void store(String key, File output) throws IOException {
+    Path entry = entry(key);
+    if (Files.exists(entry)) {
+      return;
+    }
+
+    Files.createDirectories(entry.getParent());
+    // Readers of the cache must never see a partial entry
+    Path temp = Files.createTempFile(entry.getParent(), key, ".tmp");
+    try {
+      Files.delete(temp);
+      linkOrCopy(output.toPath(), temp);
+      Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private Path entry(String key) {
+    return Paths.get(directory.getPath(), key.substring(0, 2), key);
+  }
+
+  private static void linkOrCopy(Path existing, Path target) throws IOException {
+    try {
+      Files.createLink(target, existing);
+    } catch (FileAlreadyExistsException e) {
+      throw e;
+    } catch (IOException | UnsupportedOperationException e) {
+      Files.copy(existing, target);
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform has SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] digest) {
+    return String.format("%064x", new BigInteger(1, digest));
+  }
+}
@@ -0,0 +1,238 @@
+package org.mos91.nlptools.writer;
+
+import de.tudarmstadt.ukp.dkpro.core.api.resources.CompressionMethod;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * Appends documents to a rolling set of shard files {@code <name>-00000<suffix>}, {@code <name>-00001<suffix>}, ...
+ * A new shard is started once the current one would exceed the size or document limit.
+ *
+ * Every document is one block. With compression, each block is compressed on its own, so the shards are
+ * still valid multi-member gzip/bzip2/xz streams and a single block can be decompressed without the
+ * rest of the shard. The sidecar index {@code <name><suffix>.index} has one line per document:
+ * {@code documentId TAB shard TAB offset TAB length}, where offset and length are in bytes of the
+ * shard file. The index is flushed whenever a shard is closed, so it covers all complete shards.
+ *
+ * Writers in the same JVM that target the same index share one instance, see {@link #acquire}. Once
+ * released, acquiring the shard set again in the same JVM continues it: numbering resumes after the
+ * highest shard on disk and the index is appended to.
+ */
+final class ShardedOutput {
+
+  static final String INDEX_SUFFIX = ".index";
+
+  private static final Map<File, ShardedOutput> OPEN = new HashMap<>();
+
+  /**
+   * Index files of the shard sets started in this JVM. Guarded by {@link #OPEN}.
+   */
+  private static final Set<File> STARTED = new HashSet<>();
+
+  private final File directory;
+
+  private final String name;
+
+  private final String suffix;
+
+  private final long maxShardBytes;
+
+  private final int maxShardDocuments;
+
+  private final boolean overwrite;
+
+  private final File indexFile;
+
+  private final boolean resume;
+
+  private int users;
+
+  private Writer index;
+
+  private int shardNumber = -1;
+
+  private File shardFile;
+
+  private OutputStream shard;
+
+  private long shardBytes;
+
+  private int shardDocuments;
+
+  private ShardedOutput(File directory, String name, String suffix, long maxShardBytes, int maxShardDocuments,
+                        boolean overwrite, File indexFile, boolean resume) {
+    this.directory = directory;
+    this.name = name;
+    this.suffix = suffix;
+    this.maxShardBytes = maxShardBytes;
+    this.maxShardDocuments = maxShardDocuments;
+    this.overwrite = overwrite;
+    this.indexFile = indexFile;
+    this.resume = resume;
+  }
+
+  /**
+   * Returns the shard set of the given name, opening it for the first user. Every call must be paired
+   * with {@link #release()}; the last release closes the shards and the index.
+   *
+   * @param suffix            file name suffix of the shards, including the compression extension.
+   * @param maxShardBytes     size limit of a shard; a single larger document still gets a shard of its own.
+   * @param maxShardDocuments document limit of a shard, 0 for no limit.
+   */
+  static ShardedOutput acquire(File directory, String name, String suffix, long maxShardBytes,
+                               int maxShardDocuments, boolean overwrite) throws IOException {
+    File indexFile = new File(directory, name + suffix + INDEX_SUFFIX).getCanonicalFile();
+    synchronized (OPEN) {
+      ShardedOutput output = OPEN.get(indexFile);
+      if (output == null) {
+        output = new ShardedOutput(directory, name, suffix, maxShardBytes, maxShardDocuments, overwrite,
+          indexFile, !STARTED.add(indexFile));
+        OPEN.put(indexFile, output);
+      }
+      output.users++;
+      return output;
+    }
+  }
+
+  void release() throws IOException {
+    synchronized (OPEN) {
+      if (--users > 0) {
+        return;
+      }
+      OPEN.remove(indexFile);
+      // Still under the lock, so that acquiring the set again sees the final shard and index
+      close();
+    }
+  }
+
+  /**
+   * @return a stream that compresses the document block into {@code block} with the given method.
+   */
+  static OutputStream compress(OutputStream block, CompressionMethod compression) throws IOException {
+    switch (compression) {
+      case NONE:
+        return block;
+      case GZIP:
+        return new GZIPOutputStream(block, 8192);
+      case BZIP2:
+        return new BZip2CompressorOutputStream(block);
+      case XZ:
+        return new XZCompressorOutputStream(block);
+      default:
+        throw new IllegalArgumentException("Unsupported compression " + compression);
+    }
+  }
+
+  /**
+   * Appends a rendered document block and records it in the index.
+   */
+  synchronized void append(String documentId, ByteArrayOutputStream block) throws IOException {
+    int length = block.size();
+    if (shard == null || shardDocuments > 0 && (shardBytes + length > maxShardBytes
+      || maxShardDocuments > 0 && shardDocuments >= maxShardDocuments)) {
+      roll();
+    }
+
+    long offset = shardBytes;
+    block.writeTo(shard);
+    shardBytes += length;
+    shardDocuments++;
+
+    index.write(documentId);
+    index.write('\t');
+    index.write(shardFile.getName());
+    index.write('\t');
+    index.write(Long.toString(offset));
+    index.write('\t');
+    index.write(Integer.toString(length));
+    index.write('\n');
+  }
+
+  private void roll() throws IOException {
+    if (index == null) {
+      OutputStream indexStream;
+      if (resume) {
+        shardNumber = highestShardNumber();
+        indexStream = new FileOutputStream(indexFile, true);
+      } else {
+        indexStream = openFile(indexFile);
+      }
+      index = new BufferedWriter(new OutputStreamWriter(indexStream, StandardCharsets.UTF_8));
+    }
+    if (shard != null) {
+      shard.close();
+      index.flush();
+    }
+
+    shardNumber++;
+    shardFile = new File(directory, String.format("%s-%05d%s", name, shardNumber, suffix));
+    shard = new BufferedOutputStream(openFile(shardFile), 1 << 16);
+    shardBytes = 0;
+    shardDocuments = 0;
+  }
+
+  /**
+   * @return the number of the last shard in the directory, or -1.
+   */
+  private int highestShardNumber() {
+    Pattern shardName = Pattern.compile(Pattern.quote(name) + "-(\\d{5,})" + Pattern.quote(suffix));
+    int highest = -1;
+    String[] files = directory.list();
+    if (files != null) {
+      for (String file : files) {
+        Matcher matcher = shardName.matcher(file);
+        if (matcher.matches()) {
+          highest = Math.max(highest, Integer.parseInt(matcher.group(1)));
+        }
+      }
+    }
+    return highest;
+  }
+
+  private OutputStream openFile(File file) throws IOException {
+    if (!overwrite && file.exists()) {
+      throw new IOException("Target file [" + file + "] already exists and overwriting not enabled.");
+    }
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+      throw new IOException("Unable to create directory [" + parent + "]");
+    }
+    return new FileOutputStream(file);
+  }
+
+  private synchronized void close() throws IOException {
+    try {
+      if (shard != null) {
+        shard.close();
+      }
+      if (index != null) {
+        index.close();
+      }
+    } finally {
+      closeQuietly(shard);
+      closeQuietly(index);
+      shard = null;
+      index = null;
+    }
+  }
+}
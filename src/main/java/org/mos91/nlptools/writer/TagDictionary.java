@@ -0,0 +1,85 @@
+package org.mos91.nlptools.writer;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the values of small closed tagsets (POS tags, dependency types, semantic roles, ...) to dense
+ * ids and keeps their bytes in the output encoding, so that a repeated tag is copied to the output
+ * instead of being encoded again.
+ *
+ * The number of entries is capped, so that a field with open-class values cannot grow the dictionary
+ * without bound; values beyond the cap get no id and are encoded on every use.
+ *
+ * This class is not thread-safe.
+ */
+final class TagDictionary {
+
+  static final int NO_TAG = -1;
+
+  static final int DEFAULT_CAPACITY = 1 << 14;
+
+  private final Charset encoding;
+
+  private final int capacity;
+
+  private final Map<String, Integer> ids = new HashMap<>();
+
+  private String[] values = new String[64];
+
+  private byte[][] encoded = new byte[64][];
+
+  TagDictionary(Charset encoding, int capacity) {
+    this.encoding = encoding;
+    this.capacity = capacity;
+  }
+
+  Charset encoding() {
+    return encoding;
+  }
+
+  /**
+   * @return id of the value, adding it if there is room; {@link #NO_TAG} for null and for new values
+   *         once the dictionary is full.
+   */
+  int id(String value) {
+    if (value == null) {
+      return NO_TAG;
+    }
+
+    Integer id = ids.get(value);
+    if (id != null) {
+      return id;
+    }
+    if (ids.size() >= capacity) {
+      return NO_TAG;
+    }
+
+    int next = ids.size();
+    if (next == values.length) {
+      values = Arrays.copyOf(values, next * 2);
+      encoded = Arrays.copyOf(encoded, next * 2);
+    }
+    values[next] = value;
+    encoded[next] = value.getBytes(encoding);
+    ids.put(value, next);
+    return next;
+  }
+
+  String value(int id) {
+    return values[id];
+  }
+
+  /**
+   * @return the value in the output encoding. The array is shared and must not be modified.
+   */
+  byte[] bytes(int id) {
+    return encoded[id];
+  }
+
+  int size() {
+    return ids.size();
+  }
+}